@@ -0,0 +1,135 @@
+/* MicroJava Batch Compiler
+   ========================
+Compiles many source files in one JVM. Every file gets its own
+CompilationContext; the files are distributed over a work-stealing
+ForkJoinPool, while the predeclared universe of Tab is shared by all jobs.
+Directories are searched recursively for MicroJava sources (*.txt); files
+that are named explicitly are compiled whatever their extension. Error
+messages are collected per file and printed in the order of the files,
+followed by the aggregate throughput.
+Synopsis: java MJ.BatchCompiler [-O] [-j <threads>] (<directory> | <file>)...
+*/
+package MJ;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class BatchCompiler {
+	private static final String sourceExt = ".txt";	// extension of the sources in a directory
+
+	// Compiles the files lo..hi-1, splitting the range as long as it has more than one file
+	private static class Job extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final String[] files;
+		private final String[] messages;
+		private final int[] errors;
+		private final boolean optimize;
+		private final int lo, hi;
+
+		Job(String[] files, String[] messages, int[] errors, boolean optimize, int lo, int hi) {
+			this.files = files; this.messages = messages; this.errors = errors;
+			this.optimize = optimize; this.lo = lo; this.hi = hi;
+		}
+
+		protected void compute() {
+			if (hi - lo == 1) compile(lo);
+			else {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new Job(files, messages, errors, optimize, lo, mid),
+				          new Job(files, messages, errors, optimize, mid, hi));
+			}
+		}
+
+		private void compile(int i) {
+			String source = files[i];
+			ByteArrayOutputStream msg = new ByteArrayOutputStream();
+			PrintStream out = new PrintStream(msg);
+			try {
+				CompilationContext ctx = new CompilationContext(new File(source), out);
+				ctx.listing = false;
+				ctx.optimize = optimize;
+				errors[i] = ctx.compile();
+				if (errors[i] == 0) {
+					String output = Compiler.objFileName(source);
+					try {
+						ctx.write(new FileOutputStream(output));
+					} catch (IOException e) {
+						out.println("-- cannot open output file " + output);
+						errors[i]++;
+					}
+				} else ctx.code.release();	// return the code segments to the pool
+			} catch (IOException e) {
+				out.println("-- cannot open input file " + source);
+				errors[i]++;
+			} catch (RuntimeException e) {	// a compiler bug; the other files are still compiled
+				out.println("-- internal compiler error in " + source + ": " + e);
+				errors[i]++;
+			}
+			out.flush();
+			messages[i] = msg.toString();
+		}
+	}
+
+	// Collect the source files given on the command line; directories are searched recursively
+	private static void collect(File f, List<String> files) {
+		if (f.isDirectory()) {
+			File[] list = f.listFiles();
+			if (list == null) return;
+			Arrays.sort(list);
+			for (File g : list)
+				if (g.isDirectory() || g.getName().endsWith(sourceExt)) collect(g, files);
+		} else files.add(f.getPath());
+	}
+
+	// Compile all files with the given number of threads; returns the number of files with errors
+	public static int compile(String[] files, int threads, boolean optimize, PrintStream out) {
+		String[] messages = new String[files.length];
+		int[] errors = new int[files.length];
+		long start = System.nanoTime();
+		if (files.length > 0) {
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			try {
+				pool.invoke(new Job(files, messages, errors, optimize, 0, files.length));
+			} finally {
+				pool.shutdown();
+			}
+		}
+		long time = System.nanoTime() - start;
+
+		int failed = 0;
+		for (int i = 0; i < files.length; i++) {
+			if (errors[i] > 0) {
+				failed++;
+				out.println("-- " + files[i] + ": " + errors[i] + " errors");
+			}
+			out.print(messages[i]);
+		}
+		double seconds = time / 1e9;
+		out.printf("-- %d files compiled (%d with errors) in %.3f s: %.1f files/s on %d threads%n",
+			files.length, failed, seconds, files.length / Math.max(seconds, 1e-9), threads);
+		return failed;
+	}
+
+	public static void main(String args[]) {
+		int threads = Runtime.getRuntime().availableProcessors();
+		boolean optimize = false;
+		List<String> files = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-O")) optimize = true;
+			else if (args[i].equals("-j") && i + 1 < args.length) {
+				try {
+					threads = Math.max(1, Integer.parseInt(args[++i]));
+				} catch (NumberFormatException e) {
+					System.out.println("-- invalid thread count " + args[i]);
+					return;
+				}
+			} else collect(new File(args[i]), files);
+		}
+		if (files.isEmpty())
+			System.out.println("-- synopsis: java MJ.BatchCompiler [-O] [-j <threads>] (<directory> | <file>)...");
+		else
+			compile(files.toArray(new String[files.size()]), threads, optimize, System.out);
+	}
+
+}
@@ -0,0 +1,90 @@
+/* MicroJava Scanner Benchmark
+   ===========================
+   Measures how many tokens per second the scanner delivers, once as Token
+   objects (Scanner.next) and once into a TokenStream (Scanner.fill). Every
+   input is loaded once and then scanned repeatedly; the first second of each
+   run is used to warm up the JIT and is not measured.
+   Run with
+     java MJ.BenchScanner {<inputFileName> | -synthetic <kilobytes>}
+   -synthetic generates a program of roughly the given size that mixes
+   declarations, statements, expressions, comments and char constants.
+*/
+package MJ;
+
+import java.io.*;
+
+public class BenchScanner {
+	private static final int eof = 36;
+	private static final long warmup = 1000000000L;		// ns
+	private static final long measure = 3000000000L;	// ns
+
+	private static final String[] snippet = {
+		"  int f(int x, int[] a)\n    int i, sum; char c;\n  {\n",
+		"    sum = 0; i = 0; // running sum\n",
+		"    while (i < len(a)) { sum = sum + a[i] * 3 - x / 2; i = i + 1; }\n",
+		"    if (sum >= 1000) sum = sum % 97; else if (sum != 0) sum = -sum;\n",
+		"    c = 'x'; if (c == '\\n') print(c, 2);\n",
+		"    val.pos[x] = val.neg[-x] + 12345;\n",
+		"    return sum;\n  }\n"
+	};
+
+	private static String synthetic(int kilobytes) {
+		StringBuilder b = new StringBuilder("program Synthetic\n  final int size = 10;\n{\n");
+		while (b.length() < kilobytes * 1024)
+			for (String s : snippet) b.append(s);
+		return b.append("}\n").toString();
+	}
+
+	// Scan the whole input once; returns the number of tokens
+	private static int scanAll(Scanner scanner, TokenStream ts) {
+		int n = 0;
+		scanner.init();
+		if (ts == null) {
+			while (scanner.next().kind != eof) n++;
+			return n + 1;
+		}
+		do n += scanner.fill(ts, 0); while (ts.kind[ts.count - 1] != eof);
+		return n;
+	}
+
+	private static void run(String name, Scanner scanner, TokenStream ts) {
+		long tokens = 0, start = System.nanoTime(), end = start + warmup;
+		while (System.nanoTime() < end) scanAll(scanner, ts);
+		start = System.nanoTime(); end = start + measure;
+		long now;
+		do {
+			tokens += scanAll(scanner, ts);
+			now = System.nanoTime();
+		} while (now < end);
+		double seconds = (now - start) / 1e9;
+		System.out.printf("%-30s %-8s %12.0f tokens/s%n", name, ts == null ? "Token" : "stream", tokens / seconds);
+	}
+
+	private static void run(String name, CompilationContext ctx) {
+		run(name, ctx.scanner, null);
+		run(name, ctx.scanner, new TokenStream(1024));
+	}
+
+	public static void main(String args[]) {
+		if (args.length == 0) {
+			System.out.println("-- synopsis: java MJ.BenchScanner {<inputFileName> | -synthetic <kilobytes>}");
+			return;
+		}
+		PrintStream quiet = new PrintStream(new ByteArrayOutputStream());
+		for (int i = 0; i < args.length; i++) {
+			try {
+				if (args[i].equals("-synthetic") && i + 1 < args.length) {
+					int kb = Integer.parseInt(args[++i]);
+					run("synthetic " + kb + " KB", new CompilationContext(new StringReader(synthetic(kb)), quiet));
+				} else {
+					run(args[i], new CompilationContext(new File(args[i]), quiet));
+				}
+			} catch (NumberFormatException e) {
+				System.out.println("-- invalid size " + args[i]);
+			} catch (IOException e) {
+				System.out.println("-- cannot open input file " + args[i]);
+			}
+		}
+	}
+
+}
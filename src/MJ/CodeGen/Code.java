@@ -3,10 +3,14 @@
 This class holds the code buffer with its access primitives get* and put*.
 It also holds methods to load operands and to generate complex instructions
 such as assignments and jumps.
+The code buffer is a list of fixed-size segments, so it grows without
+copying. Segments are taken from a pool shared by all compilations and are
+returned to it when the code has been written (or released).
 */
 package MJ.CodeGen;
 
 import java.io.*;
+import java.util.*;
 import MJ.*;
 import MJ.SymTab.*;
 
@@ -25,40 +29,97 @@ public class Code {
             jne         = 41,jlt         = 42,jle         = 43,jgt         = 44,
             jge         = 45,call        = 46,return_     = 47,enter       = 48,
             exit        = 49,read        = 50,print       = 51,bread       = 52,
-            bprint      = 53,trap        = 54;
+            bprint      = 53,trap        = 54,
+            jmpw        = 55,jeqw        = 56,jnew        = 57,jltw        = 58, // wide forms with
+            jlew        = 59,jgtw        = 60,jgew        = 61,callw       = 62, // 4-byte addresses
+            jmps        = 63,jeqs        = 64,jnes        = 65,jlts        = 66, // short forms with
+            jles        = 67,jgts        = 68,jges        = 69,                 // 1-byte displacement
+            dup         = 70;
     public static final int  // compare operators
             eq = 0, ne = 1, lt = 2, le = 3, gt = 4, ge = 5;
     
-    private static int[] inverse = {ne, eq, ge, gt, le, lt};
-    private static final int bufSize = 8192;
-    private static byte[] buf;	// code buffer
-    public static int pc;		// next free byte in code buffer
-    public static int mainPc;	// pc of main function (set by parser)
-    public static int dataSize;	// length of static data in words (set by parser)
+    private static final int[] inverse = {ne, eq, ge, gt, le, lt};
+    private static final int segShift = 12;	// segments of 4 KB
+    private static final int segSize = 1 << segShift, segMask = segSize - 1;
+    private static final int maxPooled = 256;	// segments kept in the pool
+    private static final ArrayDeque<byte[]> pool = new ArrayDeque<byte[]>();
+
+    private final CompilationContext ctx;
+    private byte[][] segs;	// code buffer: byte pos is segs[pos >> segShift][pos & segMask]
+    private int nSegs;	// number of segments in use
+    public int pc;		// next free byte in code buffer
+    public int mainPc;	// pc of main function (set by parser)
+    public int dataSize;	// length of static data in words (set by parser)
+
+    // Jumps and calls are emitted in their wide form. finish() decodes the
+    // code into an InstrList, drops the methods that main never calls, runs
+    // the peephole optimizer on it and gives every jump and call the shortest
+    // form that reaches its target. Jumps have a short form (2 bytes) with a
+    // displacement relative to the jump.
+    private InstrList list;	// the code after finish()
+    private Peephole peephole;
+    private int removedMethods;	// unreachable methods dropped by finish()
+    private boolean finished;
+
+    public Code(CompilationContext ctx) {
+        this.ctx = ctx;
+    }
 
     //--------------- code buffer access ----------------------
 
-    public static void put(int x) {
-        if (pc >= bufSize) {
-            if (pc == bufSize) Parser.error("program too large");
-            pc++;
-        } else buf[pc++] = (byte)x;
+    public void put(int x) {
+        int seg = pc >> segShift;
+        if (seg == nSegs) grow();
+        segs[seg][pc & segMask] = (byte)x;
+        pc++;
     }
 
-    public static void put2(int x) { put(x>>8); put(x); }
+    public void put2(int x) { put(x>>8); put(x); }
 
-    public static void put2(int pos, int x) {
-        int oldpc = pc; pc = pos; put2(x); pc = oldpc;
+    // overwrite the 2 bytes at pos < pc; they may lie in different segments
+    public void put2(int pos, int x) {
+        segs[pos >> segShift][pos & segMask] = (byte)(x>>8);
+        pos++;
+        segs[pos >> segShift][pos & segMask] = (byte)x;
     }
 
-    public static void put4(int x) { put2(x>>16); put2(x); }
+    public void put4(int x) { put2(x>>16); put2(x); }
+
+    public void put4(int pos, int x) { put2(pos, x>>16); put2(pos + 2, x); }
+
+    public int get(int pos) { return segs[pos >> segShift][pos & segMask]; }
+
+    // Append a segment to the code buffer
+    private void grow() {
+        if (nSegs == segs.length) segs = Arrays.copyOf(segs, 2 * nSegs);
+        byte[] seg;
+        synchronized (pool) { seg = pool.poll(); }
+        segs[nSegs++] = seg != null ? seg : new byte[segSize];
+    }
 
-    public static int get(int pos) { return buf[pos]; }
+    // Return the segments to the pool; the code buffer is empty afterwards
+    public void release() {
+        synchronized (pool) {
+            for (int i = 0; i < nSegs; i++) {
+                if (pool.size() < maxPooled) pool.push(segs[i]);
+                segs[i] = null;
+            }
+        }
+        nSegs = 0; pc = 0;
+    }
+
+    // Return a copy of the code
+    public byte[] toArray() {
+        byte[] a = new byte[pc];
+        for (int i = 0, pos = 0; pos < pc; i++, pos += segSize)
+            System.arraycopy(segs[i], 0, a, pos, Math.min(segSize, pc - pos));
+        return a;
+    }
 
     //----------------- instruction generation --------------
 
     // Load the operand x to the expression stack
-    public static void load(Operand x) {
+    public void load(Operand x) {
     switch (x.kind) {
         case Operand.Con:
             if (0 <= x.val && x.val <= 5) put(const0 + x.val);
@@ -76,16 +137,16 @@ public class Code {
         case Operand.Elem: // assert: base address and index are on stack
             if (x.type == Tab.charType) put(baload); else put(aload); break;
         case Operand.Meth:
-            Parser.error("bad method call"); 
+            ctx.parser.error("bad method call"); 
             break;
         case Operand.Stack: break; // nothing (already loaded)
-        default: Parser.error("cannot load this value");
+        default: ctx.parser.error("cannot load this value");
         }
         x.kind = Operand.Stack;
     }
 
     // Generate an assignment x = y
-    public static void assign(Operand x, Operand y) {
+    public void assign(Operand x, Operand y) {
         load(y);
         switch (x.kind) {
             case Operand.Static:
@@ -99,7 +160,7 @@ public class Code {
             case Operand.Elem: // assert: base address and index are on stack
                 if (x.type == Tab.charType) put(bastore); else put(astore);
                 break;
-            default: Parser.error("incompatible types in assignment");
+            default: ctx.parser.error("incompatible types in assignment");
         }
         x.kind = Operand.Stack;            
     }
@@ -107,44 +168,75 @@ public class Code {
     //------------- jumps ---------------
 
     // Unconditional jump
-    public static void putJump(int adr) { put(jmp); put2(adr); }
+    public void putJump(int adr) { put(jmpw); put4(adr); }
 
     // Conditional jump if op is false
-    public static void putFalseJump(int op, int adr) {
-        put(jeq + inverse[op]); put2(adr);
+    public void putFalseJump(int op, int adr) {
+        put(jeqw + inverse[op]); put4(adr);
+    }
+
+    // Conditional jump if op is true
+    public void putTrueJump(int op, int adr) { put(jeqw + op); put4(adr); }
+
+    // Method call
+    public void putCall(int adr) { put(callw); put4(adr); }
+
+    // patch the 4-byte jump target at adr so that it jumps to the current pc
+    public void fixup(int adr) { put4(adr, pc); }
+
+    // Optimize the complete code and lay it out with the final forms of all
+    // jumps and calls. Afterwards relocate() maps the old addresses of
+    // instructions (e.g. of methods) to the new ones.
+    public void finish() {
+        if (finished) return;
+        finished = true;
+        list = new InstrList(toArray(), pc);
+        if (mainPc >= 0) removedMethods = list.removeUnreachableMethods(list.indexOf(mainPc));
+        peephole = new Peephole();
+        peephole.run(list, mainPc >= 0 ? list.indexOf(mainPc) : -1);
+        list.layout();
+        if (mainPc >= 0) mainPc = list.relocate(mainPc);
+        release();
+        list.emit(this);
     }
 
-    // patch jump target at adr so that it jumps to the current pc
-    public static void fixup(int adr) { put2(adr, pc); }
+    // Return the final address of the instruction at adr (before finish()),
+    // -1 if it was removed (e.g. the enter of an unreachable method)
+    public int relocate(int adr) { return list == null ? adr : list.relocate(adr); }
 
     //------------------------------------
 
     // initialize code buffer
-    public static void init() {
-        buf = new byte[bufSize];
+    public void init() {
+        if (segs != null) release(); else segs = new byte[16][];
         pc = 0; mainPc = -1;
+        list = null; peephole = null; finished = false;
+        removedMethods = 0;
     }
 
-    public static void dump() { Decoder.decode(buf,0,pc); }
+    public void dump() {
+        finish();
+        new Decoder(ctx.out).decode(toArray(), 0, pc);
+        peephole.report(ctx.out);
+        if (removedMethods > 0) ctx.out.println("-- unreachable methods removed: " + removedMethods);
+    }
 
-    // Write the code buffer to the output stream
-    public static void write(OutputStream s) {
-        int codeSize;
+    // Write header and code to the output stream and release the code buffer
+    public void write(OutputStream s) {
+        finish();
         try {
-                codeSize = pc;
-                Decoder.decode(buf, 0, codeSize);
-                put('M'); put('J');
-                put4(codeSize);
-                put4(dataSize);
-                put4(mainPc);
-                s.write(buf, codeSize, pc - codeSize);	// header
-                s.write(buf, 0, codeSize);				// code
-                s.close();
+                if (ctx.listing) dump();
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s));
+                out.write('M'); out.write('J');	// header
+                out.writeInt(pc);		// codeSize
+                out.writeInt(dataSize);
+                out.writeInt(mainPc);
+                for (int i = 0, pos = 0; pos < pc; i++, pos += segSize)	// code
+                    out.write(segs[i], 0, Math.min(segSize, pc - pos));
+                out.close();
         } catch(IOException e) {
-                Parser.error("cannot write code file");
+                ctx.parser.error("cannot write code file");
         }
+        release();
     }
 }
-
-
-
@@ -3,6 +3,8 @@
 */
 package MJ.CodeGen;
 
+import java.io.*;
+
 public class Decoder {
 
 	private static final int  // instruction codes
@@ -19,30 +21,42 @@ public class Decoder {
 		jne         = 41,jlt         = 42,jle         = 43,jgt         = 44,
 		jge         = 45,call        = 46,return_     = 47,enter       = 48,
 		exit        = 49,read        = 50,print       = 51,bread       = 52,
-		bprint      = 53,trap        = 54;
+		bprint      = 53,trap        = 54,jmpw        = 55,jeqw        = 56,
+		jnew        = 57,jltw        = 58,jlew        = 59,jgtw        = 60,
+		jgew        = 61,callw       = 62,jmps        = 63,jeqs        = 64,
+		jnes        = 65,jlts        = 66,jles        = 67,jgts        = 68,
+		jges        = 69,dup         = 70;
+
+	private final PrintStream out;	// listing output
+	private byte[] code;		// code buffer
+	private int cur;			// address of next byte to decode
+	private int adr;			// address of currently decoded instruction
 
-	private static byte[] code;		// code buffer
-	private static int cur;			// address of next byte to decode
-	private static int adr;			// address of currently decoded instruction
+	public Decoder(PrintStream out) { this.out = out; }
 
-	private static int get() {
+	private int get() {
 		return ((int)code[cur++])<<24>>>24;
 	}
 
-	private static int get2() {
+	private int get2() {
 		return (get()*256 + get())<<16>>16;
 	}
 
-	private static int get4() {
+	// target of a short jump: displacement relative to the jump
+	private int getDisp() {
+		return adr + (byte)get();
+	}
+
+	private int get4() {
 		return (get2()<<16) + (get2()<<16>>>16);
 	}
 
-	private static void P(String s) {
-		System.out.println(adr+": "+s);
+	private void P(String s) {
+		out.println(adr+": "+s);
 		adr = cur;
 	}
 
-	public static void decode(byte[] c, int off, int len) {
+	public void decode(byte[] c, int off, int len) {
 		int op;
 		code = c;
 		cur = off;
@@ -103,6 +117,22 @@ public class Decoder {
 				case bread:     P("bread"); break;
 				case bprint:    P("bprint"); break;
 				case trap:      P("trap "+get()); break;
+				case jmpw:      P("jmpw "+get4()); break;
+				case jeqw:      P("jeqw "+get4()); break;
+				case jnew:      P("jnew "+get4()); break;
+				case jltw:      P("jltw "+get4()); break;
+				case jlew:      P("jlew "+get4()); break;
+				case jgtw:      P("jgtw "+get4()); break;
+				case jgew:      P("jgew "+get4()); break;
+				case callw:     P("callw "+get4()); break;
+				case jmps:      P("jmps "+getDisp()); break;
+				case jeqs:      P("jeqs "+getDisp()); break;
+				case jnes:      P("jnes "+getDisp()); break;
+				case jlts:      P("jlts "+getDisp()); break;
+				case jles:      P("jles "+getDisp()); break;
+				case jgts:      P("jgts "+getDisp()); break;
+				case jges:      P("jges "+getDisp()); break;
+				case dup:       P("dup"); break;
 				default:        P("-- error--"); break;
 			}
 		}
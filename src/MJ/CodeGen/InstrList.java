@@ -0,0 +1,200 @@
+/* MicroJava Instruction List
+   ==========================
+The code of a program decoded into one entry per instruction, so that it can
+be transformed (see Peephole) and laid out again. Jumps and calls refer to the
+index of their target instruction instead of an address; removed instructions
+keep their entry with op = removed and take no space, so a jump to a removed
+instruction lands on the next remaining one.
+layout() chooses the form of every jump and call and computes the final
+addresses; emit() writes the instructions back into a code buffer.
+removeUnreachableMethods() drops the methods that main cannot reach through
+calls; a method extends from its enter to the next one.
+*/
+package MJ.CodeGen;
+
+import java.util.Arrays;
+
+class InstrList {
+	static final int removed = 0;	// op of a removed instruction
+
+	int n;			// number of instructions
+	int[] op;		// opcode; jumps and calls in their wide form
+	int[] arg;		// operand; jumps and calls: index of the target instruction
+	int[] arg2;		// enter: frame size
+	boolean[] label;	// instruction is the target of a jump or call (see findLabels)
+	private int[] index;	// index of the instruction at every address of the decoded code
+	private int[] size;		// size of every instruction after layout
+	private int[] newAdr;	// address of every instruction after layout, newAdr[n] = code size
+
+	// Number of operand bytes of an instruction
+	static int operandSize(int op) {
+		switch (op) {
+			case Code.load: case Code.store: case Code.newarray: case Code.trap:
+			case Code.jmps: case Code.jeqs: case Code.jnes: case Code.jlts:
+			case Code.jles: case Code.jgts: case Code.jges:
+				return 1;
+			case Code.enter:
+			case Code.getstatic: case Code.putstatic: case Code.getfield: case Code.putfield:
+			case Code.new_: case Code.jmp: case Code.jeq: case Code.jne: case Code.jlt:
+			case Code.jle: case Code.jgt: case Code.jge: case Code.call:
+				return 2;
+			case Code.const_: case Code.jmpw: case Code.jeqw: case Code.jnew: case Code.jltw:
+			case Code.jlew: case Code.jgtw: case Code.jgew: case Code.callw:
+				return 4;
+			default:
+				return 0;
+		}
+	}
+
+	static boolean isJump(int op) { return op >= Code.jmpw && op <= Code.jgew; }
+
+	static boolean isCondJump(int op) { return op >= Code.jeqw && op <= Code.jgew; }
+
+	// Decode the instructions c[0..len-1]
+	InstrList(byte[] c, int len) {
+		int cap = len / 2 + 16;
+		op = new int[cap]; arg = new int[cap]; arg2 = new int[cap];
+		index = new int[len + 1];
+		Arrays.fill(index, -1);
+		int pos = 0;
+		while (pos < len) {
+			if (n == op.length) grow();
+			int o = c[pos] & 0xff, a = 0, a2 = 0, start = pos;
+			index[pos++] = n;
+			switch (operandSize(o)) {
+				case 1: a = o >= Code.jmps ? start + c[pos] : c[pos] & 0xff; break;
+				case 2: a = (short)((c[pos] << 8) | (c[pos + 1] & 0xff)); break;
+				case 4: a = (c[pos] << 24) | ((c[pos + 1] & 0xff) << 16) | ((c[pos + 2] & 0xff) << 8) | (c[pos + 3] & 0xff); break;
+			}
+			if (o == Code.enter) { a = c[pos] & 0xff; a2 = c[pos + 1] & 0xff; }
+			pos += operandSize(o);
+			if (o >= Code.jmp && o <= Code.jge || o == Code.call) o += Code.jmpw - Code.jmp;
+			else if (o >= Code.jmps && o <= Code.jges) o += Code.jmpw - Code.jmps;
+			op[n] = o; arg[n] = a; arg2[n] = a2;
+			n++;
+		}
+		index[len] = n;
+		for (int i = 0; i < n; i++) // jump targets: address -> index
+			if (isJump(op[i]) || op[i] == Code.callw) {
+				int t = arg[i];
+				arg[i] = t >= 0 && t <= len && index[t] >= 0 ? index[t] : n;
+			}
+		label = new boolean[n + 1];
+	}
+
+	private void grow() {
+		int cap = 2 * op.length;
+		op = Arrays.copyOf(op, cap);
+		arg = Arrays.copyOf(arg, cap);
+		arg2 = Arrays.copyOf(arg2, cap);
+	}
+
+	// Index of the first instruction at or after i that was not removed (n if none)
+	int live(int i) {
+		while (i < n && op[i] == removed) i++;
+		return i;
+	}
+
+	// Index of the instruction at address adr of the decoded code
+	int indexOf(int adr) { return index[adr]; }
+
+	// Remove the methods that cannot be reached by calls from the method with
+	// the instruction main; returns the number of removed methods
+	int removeUnreachableMethods(int main) {
+		int[] method = new int[n + 1];	// start of the method of every instruction, -1 before the first
+		int start = -1;
+		for (int i = 0; i < n; i++) {
+			if (op[i] == Code.enter) start = i;
+			method[i] = start;
+		}
+		method[n] = -1;
+		boolean[] reached = new boolean[n];
+		int[] work = new int[n];
+		int top = 0;
+		if (method[main] < 0) return 0;
+		reached[method[main]] = true;
+		work[top++] = method[main];
+		while (top > 0) {
+			int i = work[--top];
+			do {
+				if (op[i] == Code.callw) {
+					int m = method[arg[i]];
+					if (m >= 0 && !reached[m]) { reached[m] = true; work[top++] = m; }
+				}
+				i++;
+			} while (i < n && op[i] != Code.enter);
+		}
+		int removedMethods = 0;
+		for (int i = 0; i < n; i++)
+			if (method[i] >= 0 && !reached[method[i]]) {
+				if (i == method[i]) removedMethods++;
+				op[i] = removed;
+			}
+		return removedMethods;
+	}
+
+	// Mark the targets of all jumps and calls and the instructions at the given entry indices
+	void findLabels(int... entries) {
+		Arrays.fill(label, false);
+		for (int i = 0; i < n; i++)
+			if (isJump(op[i]) || op[i] == Code.callw) label[live(arg[i])] = true;
+		for (int e : entries) if (e >= 0) label[live(e)] = true;
+	}
+
+	// Choose the form of every jump and call and compute the final addresses.
+	// Starting with short jumps and normal calls, a site whose target is out of
+	// reach of its form gets the next larger form, until no site changes. Sites
+	// only grow, so this ends.
+	void layout() {
+		size = new int[n];
+		newAdr = new int[n + 1];
+		for (int i = 0; i < n; i++) {
+			if (op[i] == removed) size[i] = 0;
+			else if (isJump(op[i])) size[i] = 2;
+			else if (op[i] == Code.callw) size[i] = 3;
+			else size[i] = 1 + operandSize(op[i]);
+		}
+		boolean changed;
+		do {
+			for (int i = 0; i < n; i++) newAdr[i + 1] = newAdr[i] + size[i];
+			changed = false;
+			for (int i = 0; i < n; i++) {
+				if (size[i] == 0 || !(isJump(op[i]) || op[i] == Code.callw)) continue;
+				int target = newAdr[arg[i]];
+				if (size[i] == 2) {
+					int disp = target - newAdr[i];
+					if (disp < Byte.MIN_VALUE || disp > Byte.MAX_VALUE) { size[i] = 3; changed = true; }
+				}
+				if (size[i] == 3 && target > Short.MAX_VALUE) { size[i] = 5; changed = true; }
+			}
+		} while (changed);
+	}
+
+	// Final address of the instruction at address adr of the decoded code
+	// (after layout), -1 if it was removed
+	int relocate(int adr) { return op[index[adr]] == removed ? -1 : newAdr[index[adr]]; }
+
+	// Append the laid out instructions to code
+	void emit(Code code) {
+		for (int i = 0; i < n; i++) {
+			int o = op[i];
+			if (o == removed) continue;
+			if (isJump(o) || o == Code.callw) {
+				int target = newAdr[arg[i]];
+				switch (size[i]) {
+					case 2: code.put(o - Code.jmpw + Code.jmps); code.put(target - newAdr[i]); break;
+					case 3: code.put(o - Code.jmpw + Code.jmp); code.put2(target); break;
+					default: code.put(o); code.put4(target);
+				}
+				continue;
+			}
+			code.put(o);
+			if (o == Code.enter) { code.put(arg[i]); code.put(arg2[i]); }
+			else switch (operandSize(o)) {
+				case 1: code.put(arg[i]); break;
+				case 2: code.put2(arg[i]); break;
+				case 4: code.put4(arg[i]); break;
+			}
+		}
+	}
+}
@@ -0,0 +1,113 @@
+/* MicroJava Peephole Optimizer
+   ============================
+Applies a table of rewrite rules to an InstrList until no rule matches any
+more. A rule looks at an instruction and its successor; if it changes the
+successor, the successor must not be a jump target, because another path
+would enter the rewritten sequence in the middle. Jumps refer to
+instructions, not addresses, so removing code needs no fixups; Code.finish
+relocates the method addresses and mainPc afterwards.
+Every rule counts its hits for the report in the listing.
+*/
+package MJ.CodeGen;
+
+import java.io.*;
+
+class Peephole {
+
+	private static abstract class Rule {
+		final String name;
+		Rule(String name) { this.name = name; }
+		// Try the rule at instruction i; j is the next instruction that was
+		// not removed (l.n at the end). Returns true if the rule was applied.
+		abstract boolean apply(InstrList l, int i, int j);
+	}
+
+	private static final Rule[] rules = {
+		new Rule("jump to next instruction") {
+			boolean apply(InstrList l, int i, int j) {
+				if (l.op[i] != Code.jmpw || l.live(l.arg[i]) != j) return false;
+				l.op[i] = InstrList.removed;
+				return true;
+			}
+		},
+		new Rule("jump to jump") {
+			boolean apply(InstrList l, int i, int j) {
+				if (!InstrList.isJump(l.op[i])) return false;
+				int t = l.live(l.arg[i]);
+				if (t == l.n || l.op[t] != Code.jmpw || l.live(l.arg[t]) == t || l.arg[t] == l.arg[i]) return false;
+				l.arg[i] = l.arg[t];
+				l.label[l.live(l.arg[i])] = true;
+				return true;
+			}
+		},
+		new Rule("unreachable code") {
+			boolean apply(InstrList l, int i, int j) {
+				int o = l.op[i];
+				if (o != Code.jmpw && o != Code.return_ && o != Code.trap) return false;
+				if (j == l.n || l.label[j] || l.op[j] == Code.enter) return false;
+				l.op[j] = InstrList.removed;
+				return true;
+			}
+		},
+		new Rule("add/sub 0") {
+			boolean apply(InstrList l, int i, int j) {
+				if (l.op[i] != Code.const0 || j == l.n || l.label[j]
+					|| l.op[j] != Code.add && l.op[j] != Code.sub) return false;
+				l.op[i] = l.op[j] = InstrList.removed;
+				return true;
+			}
+		},
+		new Rule("mul/div 1") {
+			boolean apply(InstrList l, int i, int j) {
+				if (l.op[i] != Code.const1 || j == l.n || l.label[j]
+					|| l.op[j] != Code.mul && l.op[j] != Code.div) return false;
+				l.op[i] = l.op[j] = InstrList.removed;
+				return true;
+			}
+		},
+		new Rule("neg neg") {
+			boolean apply(InstrList l, int i, int j) {
+				if (l.op[i] != Code.neg || j == l.n || l.label[j] || l.op[j] != Code.neg) return false;
+				l.op[i] = l.op[j] = InstrList.removed;
+				return true;
+			}
+		},
+		new Rule("store x; load x -> dup; store x") {
+			boolean apply(InstrList l, int i, int j) {
+				if (j == l.n || l.label[j]) return false;
+				int o = l.op[i], p = l.op[j];
+				boolean same = o >= Code.store0 && o <= Code.store3 && p == o - Code.store0 + Code.load0
+					|| o == Code.store && p == Code.load && l.arg[i] == l.arg[j]
+					|| o == Code.putstatic && p == Code.getstatic && l.arg[i] == l.arg[j];
+				if (!same) return false;
+				l.op[j] = o; l.arg[j] = l.arg[i];
+				l.op[i] = Code.dup; l.arg[i] = 0;
+				return true;
+			}
+		},
+	};
+
+	final int[] hits = new int[rules.length];
+
+	// Apply the rules to l; entries are the indices of instructions that are
+	// entered from outside (e.g. main), -1 is ignored
+	void run(InstrList l, int... entries) {
+		boolean changed;
+		do {
+			changed = false;
+			l.findLabels(entries);
+			for (int i = l.live(0); i < l.n; i = l.live(i + 1))
+				for (int r = 0; r < rules.length && l.op[i] != InstrList.removed; r++)
+					if (rules[r].apply(l, i, l.live(i + 1))) {
+						hits[r]++;
+						changed = true;
+					}
+		} while (changed);
+	}
+
+	// Print the number of hits of every rule that was applied
+	void report(PrintStream out) {
+		for (int r = 0; r < rules.length; r++)
+			if (hits[r] > 0) out.println("-- peephole: " + rules[r].name + ": " + hits[r]);
+	}
+}
@@ -0,0 +1,54 @@
+/* MicroJava Compilation Context
+   =============================
+Holds the complete state of one compilation: scanner, parser, symbol table
+and code buffer. Nothing in these phases is static any more, so any number
+of contexts can compile different programs concurrently in the same JVM.
+Only the predeclared universe in Tab (int, char, null, chr, ord, len) is
+shared, because it is built once and never modified afterwards.
+*/
+package MJ;
+
+import java.io.*;
+import MJ.SymTab.*;
+import MJ.CodeGen.*;
+import MJ.IR.*;
+
+public class CompilationContext {
+    public final PrintStream out;	// listings and error messages
+    public boolean listing = true;	// print symbol table and code listings
+    public boolean optimize;	// translate methods to the IR and optimize them (see MJ.IR)
+    public final NamePool names = new NamePool();	// identifier spellings
+    public final Scanner scanner;
+    public final Tab     tab;
+    public final Code    code;
+    public final Parser  parser;
+    public final Optimizer optimizer = new Optimizer(this);	// used with optimize
+
+    public CompilationContext(Reader r) throws IOException { this(r, System.out); }
+
+    public CompilationContext(Reader r, PrintStream out) throws IOException {
+        this.out = out;
+        scanner = new Scanner(this, r);
+        tab = new Tab(this);
+        code = new Code(this);
+        parser = new Parser(this);
+    }
+
+    // Compile a source file; the file is mapped into memory instead of being read through a Reader
+    public CompilationContext(File source, PrintStream out) throws IOException {
+        this.out = out;
+        scanner = new Scanner(this, source);
+        tab = new Tab(this);
+        code = new Code(this);
+        parser = new Parser(this);
+    }
+
+    // Parse and translate the whole source; returns the number of errors
+    public int compile() {
+        parser.parse();
+        return parser.errors;
+    }
+
+    // Write the object file of a compilation without errors
+    public void write(OutputStream s) { code.write(s); }
+}
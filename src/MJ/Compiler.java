@@ -4,26 +4,29 @@
 package MJ;
 
 import java.io.*;
-import MJ.CodeGen.*;
 
 public class Compiler {
 
-	private static String objFileName(String s) {
+	static String objFileName(String s) {
 		int i = s.lastIndexOf('.');
 		if (i < 0) return s + ".obj"; else return s.substring(0, i) + ".obj";
 	}
 
 	// Main procedure of MicroJava compiler
 	public static void main(String args[]) {
-		if (args.length > 0) {
-			String source = args[0];
+		boolean optimize = args.length > 0 && args[0].equals("-O");
+		int n = optimize ? args.length - 1 : args.length;
+		if (n > 1 || n == 1 && new File(args[args.length - 1]).isDirectory()) {
+			BatchCompiler.main(args);
+		} else if (n > 0) {
+			String source = args[args.length - 1];
 			String output = objFileName(source);
 			try {
-				Scanner.init(new InputStreamReader(new FileInputStream(source)));
-				Parser.parse();
-				if (Parser.errors == 0) {
+				CompilationContext ctx = new CompilationContext(new File(source), System.out);
+				ctx.optimize = optimize;
+				if (ctx.compile() == 0) {
 					try {
-						Code.write(new FileOutputStream(output));
+						ctx.write(new FileOutputStream(output));
 					} catch (IOException e) {
 						System.out.println("-- cannot open output file "+output);
 					}
@@ -31,7 +34,7 @@ public class Compiler {
 			} catch (IOException e) {
 				System.out.println("-- cannot open input file " + source);
 			}
-		} else System.out.println("-- synopsis: java MJ.Compiler <inputfileName>");
+		} else System.out.println("-- synopsis: java MJ.Compiler [-O] <inputfileName> | <directory> | <file>...");
 	}
 
 }
\ No newline at end of file
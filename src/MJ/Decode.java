@@ -12,9 +12,12 @@ public class Decode {
 		else {
 			try {
 				InputStream s = new FileInputStream(arg[0]);
-				byte[] code = new byte[3000];
-				int len = s.read(code);
-				Decoder.decode(code, 14, len);
+				ByteArrayOutputStream b = new ByteArrayOutputStream();
+				byte[] chunk = new byte[8192];
+				for (int n; (n = s.read(chunk)) > 0; ) b.write(chunk, 0, n);
+				s.close();
+				byte[] code = b.toByteArray();
+				new Decoder(System.out).decode(code, 14, code.length);
 			} catch (IOException e) {
 				System.out.println("-- could not open file " + arg[0]);
 			}
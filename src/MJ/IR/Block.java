@@ -0,0 +1,57 @@
+/* MicroJava IR Basic Blocks
+   =========================
+A basic block is a list of statements followed by a terminator:
+  Goto:   continue with succ
+  Branch: if (left cond right) continue with succ, else with fail
+  Return: leave the method, returning value (null for void methods)
+  Trap:   stop with a runtime error (function without return)
+*/
+package MJ.IR;
+
+import java.util.*;
+
+public class Block {
+	public static final int // terminators
+		Goto = 0, Branch = 1, Return = 2, Trap = 3;
+
+	public int id;			// number for listings
+	public final List<Stat> stats = new ArrayList<Stat>();
+	public int   term;		// Goto, Branch, Return, Trap
+	public int   cond;		// Branch: Code.eq .. Code.ge
+	public Node  left, right;	// Branch: compared values
+	public Node  value;		// Return: result or null
+	public int   trap;		// Trap: error code
+	public Block succ;		// Goto: next block; Branch: target if the condition holds
+	public Block fail;		// Branch: target if the condition does not hold
+	public final List<Block> preds = new ArrayList<Block>();
+	public int   adr;		// address during lowering
+	public Block idom;		// immediate dominator (see Method.dominators)
+	public final List<Block> children = new ArrayList<Block>();	// blocks immediately dominated by this one
+	public int   order;		// number in reverse postorder
+
+	public Block(int id) { this.id = id; }
+
+	// Number of successors
+	public int nSuccs() {
+		return term == Goto ? 1 : term == Branch ? 2 : 0;
+	}
+
+	public Block succ(int i) { return i == 0 ? succ : fail; }
+
+	public void setSucc(int i, Block b) { if (i == 0) succ = b; else fail = b; }
+
+	private static final String[] relop = {"==", "!=", "<", "<=", ">", ">="};
+
+	public String toString() {
+		StringBuilder b = new StringBuilder("B" + id + ":\n");
+		for (Stat s : stats) b.append("  ").append(s).append('\n');
+		switch (term) {
+			case Goto:   b.append("  goto B").append(succ.id); break;
+			case Branch: b.append("  if ").append(left).append(' ').append(relop[cond]).append(' ')
+			              .append(right).append(" goto B").append(succ.id).append(" else B").append(fail.id); break;
+			case Return: b.append("  return").append(value != null ? " " + value : ""); break;
+			default:     b.append("  trap ").append(trap);
+		}
+		return b.append('\n').toString();
+	}
+}
@@ -0,0 +1,287 @@
+/* MicroJava IR Builder
+   ====================
+Builds the IR of a method from the code that the parser has just generated
+for it. The method is the last code in the buffer, and its jumps and calls
+are still in their wide form with absolute addresses (see Code).
+The builder simulates the expression stack: loads push trees, operators
+combine them, and stores, calls of void methods, pop and print turn them
+into statements. Jump targets and the instructions after jumps, returns and
+traps start new basic blocks. Types are taken from the symbol table: locals
+from the method scope, statics and methods from the program scope, fields
+from the class of the dereferenced object.
+The parser empties the expression stack at every statement and every jump,
+and the IR depends on that. If the code does not fit (e.g. a value is left
+on the stack at a block boundary), build() returns null and the method's
+code is kept as it is.
+*/
+package MJ.IR;
+
+import java.util.*;
+import MJ.CodeGen.*;
+import MJ.SymTab.*;
+
+public class Builder {
+	private final Code code;
+	private final Obj meth;
+	private final Scope scope;	// method scope; scope.outer is the program scope
+	private final int start, end;	// code range of the method
+	private Method m;
+	private Block[] blockAt;	// block starting at every address of the range
+	private final ArrayDeque<Node> stack = new ArrayDeque<Node>();
+	private Block cur;		// block being filled, null after a terminator
+
+	private static class Bail extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		Bail() { super(null, null, false, false); }
+	}
+
+	public Builder(Code code, Obj meth, Scope scope) {
+		this.code = code; this.meth = meth; this.scope = scope;
+		start = meth.adr; end = code.pc;
+	}
+
+	//---------- code access ----------
+
+	private int get1(int pos) { return code.get(pos) & 0xff; }
+
+	private int get2(int pos) { return (short)((code.get(pos) << 8) | (code.get(pos + 1) & 0xff)); }
+
+	private int get4(int pos) { return (get2(pos) << 16) | (get2(pos + 2) & 0xffff); }
+
+	// Number of operand bytes of the instructions that the parser generates; -1 for the others
+	private static int operandSize(int op) {
+		switch (op) {
+			case Code.load: case Code.store: case Code.newarray: case Code.trap:
+				return 1;
+			case Code.enter: case Code.getstatic: case Code.putstatic:
+			case Code.getfield: case Code.putfield: case Code.new_:
+				return 2;
+			case Code.const_: case Code.jmpw: case Code.jeqw: case Code.jnew: case Code.jltw:
+			case Code.jlew: case Code.jgtw: case Code.jgew: case Code.callw:
+				return 4;
+			default:
+				return op >= Code.load && op <= Code.trap
+					&& !(op >= Code.jmp && op <= Code.call) && op != Code.enter ? 0 : -1;
+		}
+	}
+
+	private static boolean isJump(int op) { return op >= Code.jmpw && op <= Code.jgew; }
+
+	//---------- symbol table ----------
+
+	private Obj local(int slot) {
+		for (Obj o = scope.locals; o != null; o = o.next)
+			if (o.kind == Obj.Var && o.adr == slot) return o;
+		return null;
+	}
+
+	private Obj global(int kind, int adr) {
+		for (Obj o = scope.outer.locals; o != null; o = o.next)
+			if (o.kind == kind && o.adr == adr) return o;
+		return null;
+	}
+
+	private static Obj field(Struct type, int adr) {
+		if (type.kind == Struct.Class)
+			for (Obj f = type.fields; f != null; f = f.next)
+				if (f.adr == adr) return f;
+		return null;
+	}
+
+	//---------- expression stack ----------
+
+	private void push(Node x) { stack.push(x); }
+
+	private Node pop() {
+		if (stack.isEmpty()) throw new Bail();
+		return stack.pop();
+	}
+
+	// Append a statement; it consumes the whole stack
+	private void stat(Stat s) {
+		if (!stack.isEmpty()) throw new Bail();
+		cur.stats.add(s);
+	}
+
+	private Node var(int kind, Obj o, int adr) {
+		Node x = new Node(kind, o != null ? o.type : Tab.noType);
+		x.obj = o; x.val = adr;
+		return x;
+	}
+
+	private Node fld(Node obj, int adr) {
+		Obj f = field(obj.type, adr);
+		Node x = new Node(Node.Fld, f != null ? f.type : Tab.noType, obj, null);
+		x.obj = f; x.val = adr;
+		return x;
+	}
+
+	// Element of array a; the type must select the same load or store (byte or word)
+	private static Node elem(Node a, Node i, boolean bytes) {
+		Struct t = a.type.kind == Struct.Arr ? a.type.elemType : Tab.noType;
+		if (bytes) t = Tab.charType; else if (t == Tab.charType) t = Tab.noType;
+		return new Node(Node.Elem, t, a, i);
+	}
+
+	//---------- construction ----------
+
+	// Return the IR of the method or null if its code does not fit into the IR
+	public Method build() {
+		try {
+			if (end - start < 3 || get1(start) != Code.enter) return null;
+			m = new Method(meth, start);
+			m.nPars = get1(start + 1);
+			m.nVars = get1(start + 2);
+			findBlocks();
+			for (int pos = start + 3; pos < end; ) pos = instr(pos);
+			if (cur != null) return null; // method does not end with a terminator
+			m.update();
+			if (!m.entry().preds.isEmpty()) { // a loop at the beginning: keep the entry free of predecessors
+				Block b = m.newBlock();
+				b.term = Block.Goto; b.succ = m.entry();
+				m.blocks.add(0, b);
+				m.update();
+			}
+			return m;
+		} catch (Bail e) {
+			return null;
+		}
+	}
+
+	private Block blockAt(int adr) {
+		if (adr < start + 3 || adr >= end) throw new Bail();
+		if (blockAt[adr - start] == null) blockAt[adr - start] = m.newBlock();
+		return blockAt[adr - start];
+	}
+
+	// Create the blocks at all leaders: the first instruction, jump targets and
+	// the instructions after jumps, returns and traps
+	private void findBlocks() {
+		blockAt = new Block[end - start];
+		boolean[] instr = new boolean[end - start];
+		blockAt(start + 3);
+		for (int pos = start + 3; pos < end; ) {
+			int op = get1(pos), size = operandSize(op);
+			if (size < 0) throw new Bail();
+			instr[pos - start] = true;
+			int next = pos + 1 + size;
+			if (isJump(op)) blockAt(get4(pos + 1));
+			if ((isJump(op) || op == Code.return_ || op == Code.trap) && next < end) blockAt(next);
+			pos = next;
+		}
+		for (int i = 0; i < blockAt.length; i++) // a jump into an instruction
+			if (blockAt[i] != null && !instr[i]) throw new Bail();
+	}
+
+	// Translate the instruction at pos; returns the address of the next one
+	private int instr(int pos) {
+		Block b = blockAt[pos - start];
+		if (b != null) { // a new block begins
+			if (cur != null) terminate(Block.Goto, blockAt(pos));
+			cur = b;
+			m.blocks.add(b);
+		}
+		if (cur == null) throw new Bail();
+		int op = get1(pos);
+		int next = pos + 1 + operandSize(op);
+		Node x, y;
+		switch (op) {
+			case Code.load:
+				push(var(Node.Local, local(get1(pos + 1)), get1(pos + 1))); break;
+			case Code.load0: case Code.load1: case Code.load2: case Code.load3:
+				push(var(Node.Local, local(op - Code.load0), op - Code.load0)); break;
+			case Code.store:
+				x = pop(); stat(new Stat(Stat.Assign, var(Node.Local, local(get1(pos + 1)), get1(pos + 1)), x)); break;
+			case Code.store0: case Code.store1: case Code.store2: case Code.store3:
+				x = pop(); stat(new Stat(Stat.Assign, var(Node.Local, local(op - Code.store0), op - Code.store0), x)); break;
+			case Code.getstatic:
+				push(var(Node.Static, global(Obj.Var, get2(pos + 1)), get2(pos + 1))); break;
+			case Code.putstatic:
+				x = pop(); stat(new Stat(Stat.Assign, var(Node.Static, global(Obj.Var, get2(pos + 1)), get2(pos + 1)), x)); break;
+			case Code.getfield:
+				push(fld(pop(), get2(pos + 1))); break;
+			case Code.putfield:
+				y = pop(); x = pop(); stat(new Stat(Stat.Assign, fld(x, get2(pos + 1)), y)); break;
+			case Code.const0: case Code.const1: case Code.const2:
+			case Code.const3: case Code.const4: case Code.const5:
+				push(Node.con(op - Code.const0)); break;
+			case Code.const_m1:
+				push(Node.con(-1)); break;
+			case Code.const_:
+				push(Node.con(get4(pos + 1))); break;
+			case Code.add: case Code.sub: case Code.mul: case Code.div: case Code.rem:
+				y = pop(); x = pop();
+				push(new Node(Node.Add + op - Code.add, Tab.intType, x, y)); break;
+			case Code.shl: case Code.shr:
+				y = pop(); x = pop();
+				push(new Node(Node.Shl + op - Code.shl, Tab.intType, x, y)); break;
+			case Code.neg:
+				push(new Node(Node.Neg, Tab.intType, pop(), null)); break;
+			case Code.new_:
+				x = new Node(Node.New, Tab.noType); x.val = get2(pos + 1);
+				push(x); break;
+			case Code.newarray:
+				x = new Node(Node.NewArray, get1(pos + 1) == 0 ? Tab.charType.arrayOf() : Tab.noType.arrayOf(), pop(), null);
+				x.val = get1(pos + 1);
+				push(x); break;
+			case Code.aload: case Code.baload:
+				y = pop(); x = pop();
+				push(elem(x, y, op == Code.baload)); break;
+			case Code.astore: case Code.bastore:
+				Node val = pop(); y = pop(); x = pop();
+				stat(new Stat(Stat.Assign, elem(x, y, op == Code.bastore), val)); break;
+			case Code.arraylength:
+				push(new Node(Node.Len, Tab.intType, pop(), null)); break;
+			case Code.pop:
+				x = pop(); stat(new Stat(Stat.Eval, null, x)); break;
+			case Code.callw:
+				call(get4(pos + 1)); break;
+			case Code.read:
+				push(new Node(Node.Read, Tab.intType)); break;
+			case Code.bread:
+				push(new Node(Node.BRead, Tab.charType)); break;
+			case Code.print: case Code.bprint:
+				y = pop(); x = pop();
+				Stat s = new Stat(op == Code.print ? Stat.Print : Stat.BPrint, null, x);
+				s.width = y;
+				stat(s); break;
+			case Code.jmpw:
+				terminate(Block.Goto, blockAt(get4(pos + 1))); break;
+			case Code.jeqw: case Code.jnew: case Code.jltw: case Code.jlew: case Code.jgtw: case Code.jgew:
+				cur.right = pop(); cur.left = pop();
+				cur.cond = op - Code.jeqw;
+				cur.fail = blockAt(next);
+				terminate(Block.Branch, blockAt(get4(pos + 1))); break;
+			case Code.exit: // exit; return
+				if (next >= end || get1(next) != Code.return_ || blockAt[next - start] != null) throw new Bail();
+				cur.value = meth.type != Tab.noType ? pop() : null;
+				terminate(Block.Return, null);
+				next++; break;
+			case Code.trap:
+				cur.trap = get1(pos + 1);
+				terminate(Block.Trap, null); break;
+			default: // return without exit, enter
+				throw new Bail();
+		}
+		return next;
+	}
+
+	// Call of the method at adr; the parameters are on the stack
+	private void call(int adr) {
+		Obj o = global(Obj.Meth, adr);
+		if (o == null || stack.size() < o.nPars) throw new Bail();
+		Node x = new Node(Node.Call, o.type);
+		x.obj = o; x.val = adr;
+		x.args = new Node[o.nPars];
+		for (int i = o.nPars - 1; i >= 0; i--) x.args[i] = pop();
+		if (o.type == Tab.noType) stat(new Stat(Stat.Eval, null, x));
+		else push(x);
+	}
+
+	private void terminate(int term, Block succ) {
+		if (!stack.isEmpty()) throw new Bail();
+		cur.term = term;
+		cur.succ = succ;
+		cur = null;
+	}
+}
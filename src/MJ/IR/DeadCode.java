@@ -0,0 +1,78 @@
+/* MicroJava IR Dead Code Elimination
+   ==================================
+Removes assignments to locals whose value is never used and expression
+statements without effect. The live locals are computed by the usual
+backward data flow analysis over the blocks. An assignment to a dead local
+whose value cannot be dropped (see Node.isRemovable) keeps the evaluation
+of the value as an expression statement.
+*/
+package MJ.IR;
+
+import java.util.*;
+
+class DeadCode {
+	private final Method m;
+	private final Map<Block, BitSet> liveIn = new HashMap<Block, BitSet>();
+	private int removed;	// number of removed statements
+
+	DeadCode(Method m) { this.m = m; }
+
+	// Returns true if statements were removed
+	boolean run() {
+		for (Block b : m.blocks) liveIn.put(b, new BitSet());
+		List<Block> order = m.postorder();	// successors before predecessors
+		boolean changed;
+		do {
+			changed = false;
+			for (Block b : order) {
+				BitSet in = transfer(b, liveOut(b), false);
+				if (!in.equals(liveIn.get(b))) { liveIn.put(b, in); changed = true; }
+			}
+		} while (changed);
+		for (Block b : m.blocks)
+			if (liveIn.containsKey(b)) transfer(b, liveOut(b), true);
+		return removed > 0;
+	}
+
+	private BitSet liveOut(Block b) {
+		BitSet out = new BitSet();
+		for (int i = 0; i < b.nSuccs(); i++) out.or(liveIn.get(b.succ(i)));
+		return out;
+	}
+
+	// Compute the live locals at the start of b from those at its end; if
+	// remove is set, also remove the dead statements
+	private BitSet transfer(Block b, BitSet live, boolean remove) {
+		if (b.term == Block.Branch) { uses(b.left, live); uses(b.right, live); }
+		else if (b.term == Block.Return && b.value != null) uses(b.value, live);
+		for (ListIterator<Stat> it = b.stats.listIterator(b.stats.size()); it.hasPrevious(); ) {
+			Stat s = it.previous();
+			if (s.kind == Stat.Assign && s.dest.kind == Node.Local) {
+				if (!live.get(s.dest.val) && remove) {
+					removed++;
+					if (s.src.isRemovable()) { it.remove(); continue; }
+					s.kind = Stat.Eval; s.dest = null;
+				} else live.clear(s.dest.val);
+			} else if (s.kind == Stat.Eval && s.src.isRemovable() && remove) {
+				removed++;
+				it.remove();
+				continue;
+			} else if (s.dest != null) {
+				uses(s.dest.left, live); uses(s.dest.right, live);
+			}
+			uses(s.src, live);
+			if (s.width != null) uses(s.width, live);
+		}
+		return live;
+	}
+
+	// Add the locals that x reads to live. Temporaries that x defines (Node.Def)
+	// stay live if they were; they are never assigned elsewhere.
+	private static void uses(Node x, BitSet live) {
+		if (x == null) return;
+		if (x.kind == Node.Local) live.set(x.val);
+		uses(x.left, live); uses(x.right, live);
+		if (x.args != null)
+			for (Node a : x.args) uses(a, live);
+	}
+}
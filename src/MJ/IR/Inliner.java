@@ -0,0 +1,204 @@
+/* MicroJava IR Inlining
+   =====================
+Replaces calls of small leaf methods (methods without calls) by a copy of
+the callee's optimized IR. Only calls that are a statement of their own are
+inlined: an expression statement or the assignment of the result to a
+local. The block of the call is split at the call; the arguments are
+assigned to new local slots that take the place of the callee's slots
+(constants and locals are used directly for parameters that the callee
+does not assign), the
+callee's locals that are read before they are assigned get the value 0
+that enter would give them, and every return of the copy continues after
+the call, assigning the returned value to the local of the call.
+A callee is inlined if its size (in IR nodes) is at most maxSize, or at most
+loopSize for calls in loops, as long as the caller does not grow by more
+than maxGrowth nodes.
+*/
+package MJ.IR;
+
+import java.util.*;
+import MJ.SymTab.*;
+
+class Inliner {
+	private static final int maxSlots = 256;	// enter and load have 1-byte slot numbers
+	private static final int maxSize = 12;		// largest callee that is inlined anywhere
+	private static final int loopSize = 40;		// largest callee that is inlined in loops
+	private static final int maxGrowth = 400;	// largest total size of the inlined copies
+
+	private final Method m;
+	private final Map<Obj, Method> bodies;	// optimized IR of the leaf methods
+	private final Map<String, Integer> inlined = new LinkedHashMap<String, Integer>();	// inlined calls by callee
+	private int growth;
+	private Node[] subst;	// arguments that replace the parameters of the current callee
+
+	Inliner(Method m, Map<Obj, Method> bodies) {
+		this.m = m; this.bodies = bodies;
+	}
+
+	// Can m be inlined, i.e. does it contain no calls?
+	static boolean isLeaf(Method m) {
+		for (Block b : m.blocks) {
+			for (Stat s : b.stats)
+				if (hasCall(s.dest) || hasCall(s.src) || hasCall(s.width)) return false;
+			if (hasCall(b.left) || hasCall(b.right) || hasCall(b.value)) return false;
+		}
+		return true;
+	}
+
+	private static boolean hasCall(Node x) {
+		return x != null && (x.kind == Node.Call || hasCall(x.left) || hasCall(x.right));
+	}
+
+	// Number of nodes, statements and blocks of m
+	private static int size(Method m) {
+		int n = 0;
+		for (Block b : m.blocks) {
+			n++;
+			for (Stat s : b.stats) {
+				n++;
+				if (s.dest != null) n += s.dest.size();
+				n += s.src.size();
+				if (s.width != null) n += s.width.size();
+			}
+			if (b.left != null) n += b.left.size() + b.right.size();
+			if (b.value != null) n += b.value.size();
+		}
+		return n;
+	}
+
+	// Returns true if calls were inlined
+	boolean run() {
+		Map<Block, Integer> depth = new Loops(m).depths();
+		for (int i = 0; i < m.blocks.size(); i++) { // the inlined blocks are added on the way
+			Block b = m.blocks.get(i);
+			if (!depth.containsKey(b)) continue; // a copy of a leaf method
+			for (int j = 0; j < b.stats.size(); j++) {
+				Stat s = b.stats.get(j);
+				if (s.kind == Stat.Eval || s.kind == Stat.Assign && s.dest.kind == Node.Local) {
+					Method callee = s.src.kind == Node.Call ? bodies.get(s.src.obj) : null;
+					if (callee == null || m.nVars + callee.nVars > maxSlots) continue;
+					int size = size(callee);
+					if (size > (depth.get(b) > 0 ? loopSize : maxSize) || growth + size > maxGrowth) continue;
+					growth += size;
+					depth.put(inline(b, j, callee), depth.get(b));
+					Integer n = inlined.get(callee.obj.name);
+					inlined.put(callee.obj.name, n == null ? 1 : n + 1);
+					break; // the rest of b is in the new block
+				}
+			}
+		}
+		if (inlined.isEmpty()) return false;
+		m.update();
+		return true;
+	}
+
+	// The inlined methods and the number of inlined calls, for listings
+	String report() {
+		StringBuilder b = new StringBuilder();
+		for (Map.Entry<String, Integer> e : inlined.entrySet()) {
+			if (b.length() > 0) b.append(", ");
+			b.append(e.getKey()).append(" (").append(e.getValue()).append(e.getValue() == 1 ? " call)" : " calls)");
+		}
+		return b.toString();
+	}
+
+	// Inline callee at the call b.stats[j]; returns the block with the statements after the call
+	private Block inline(Block b, int j, Method callee) {
+		Stat call = b.stats.get(j);
+		int base = m.nVars;
+		m.nVars += callee.nVars;
+		Block cont = m.newBlock();
+		List<Stat> rest = b.stats.subList(j + 1, b.stats.size());
+		cont.stats.addAll(rest);
+		rest.clear();
+		b.stats.remove(j);
+		cont.term = b.term; cont.cond = b.cond; cont.trap = b.trap;
+		cont.left = b.left; cont.right = b.right; cont.value = b.value;
+		cont.succ = b.succ; cont.fail = b.fail;
+		Node[] args = call.src.args;
+		BitSet assigned = assigned(callee);
+		subst = new Node[callee.nVars];
+		for (int i = 0; i < callee.nPars; i++)
+			if ((args[i].kind == Node.Con || args[i].kind == Node.Local) && !assigned.get(i)) subst[i] = args[i];
+			else b.stats.add(new Stat(Stat.Assign, local(base + i, args[i].type), args[i]));
+		BitSet zero = new Slots(callee).entryLive();
+		for (int i = zero.nextSetBit(callee.nPars); i >= 0; i = zero.nextSetBit(i + 1))
+			b.stats.add(new Stat(Stat.Assign, local(base + i, null), Node.con(0)));
+		Map<Block, Block> copy = new HashMap<Block, Block>();
+		List<Block> blocks = new ArrayList<Block>();
+		for (Block c : callee.blocks) {
+			Block d = m.newBlock();
+			copy.put(c, d);
+			blocks.add(d);
+		}
+		for (Block c : callee.blocks) {
+			Block d = copy.get(c);
+			for (Stat s : c.stats) {
+				Stat t = new Stat(s.kind, copy(s.dest, base), copy(s.src, base));
+				t.width = copy(s.width, base);
+				d.stats.add(t);
+			}
+			d.term = c.term; d.cond = c.cond; d.trap = c.trap;
+			d.left = copy(c.left, base); d.right = copy(c.right, base);
+			if (c.succ != null) d.succ = copy.get(c.succ);
+			if (c.fail != null) d.fail = copy.get(c.fail);
+			if (c.term == Block.Return) {
+				Node value = copy(c.value, base);
+				if (call.kind == Stat.Assign) d.stats.add(new Stat(Stat.Assign, call.dest.copy(), value));
+				else if (value != null && !value.isRemovable()) d.stats.add(new Stat(Stat.Eval, null, value));
+				d.term = Block.Goto;
+				d.succ = cont;
+			}
+		}
+		b.term = Block.Goto;
+		b.succ = copy.get(callee.entry());
+		b.left = b.right = b.value = null; b.fail = null;
+		blocks.add(cont);
+		m.blocks.addAll(m.blocks.indexOf(b) + 1, blocks);
+		return cont;
+	}
+
+	// Slots that m assigns
+	private static BitSet assigned(Method m) {
+		BitSet set = new BitSet();
+		for (Block b : m.blocks) {
+			for (Stat s : b.stats) {
+				if (s.kind == Stat.Assign && s.dest.kind == Node.Local) set.set(s.dest.val);
+				defs(s.dest, set); defs(s.src, set); defs(s.width, set);
+			}
+			defs(b.left, set); defs(b.right, set); defs(b.value, set);
+		}
+		return set;
+	}
+
+	private static void defs(Node x, BitSet set) {
+		if (x == null) return;
+		if (x.kind == Node.Def) set.set(x.val);
+		defs(x.left, set); defs(x.right, set);
+	}
+
+	private static Node local(int slot, Struct type) {
+		Node x = new Node(Node.Local, type != null ? type : Tab.intType);
+		x.val = slot;
+		return x;
+	}
+
+	// A copy of x with the callee's slots moved by base or replaced by their arguments
+	private Node copy(Node x, int base) {
+		if (x == null) return null;
+		x = x.deepCopy();
+		move(x, base);
+		return x;
+	}
+
+	private void move(Node x, int base) {
+		if (x.kind == Node.Local && subst[x.val] != null) {
+			Node a = subst[x.val];
+			x.kind = a.kind; x.val = a.val; x.obj = a.obj;
+		} else if (x.kind == Node.Local || x.kind == Node.Def) x.val += base;
+		if (x.left != null) move(x.left, base);
+		if (x.right != null) move(x.right, base);
+		if (x.args != null)
+			for (Node a : x.args) move(a, base);
+	}
+}
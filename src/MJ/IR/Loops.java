@@ -0,0 +1,259 @@
+/* MicroJava IR Loop Optimizations
+   ===============================
+A loop is the natural loop of the back edges to its header (a block that
+dominates the sources of the edges, the latches).
+rotate() moves the test of while loops to the bottom: every latch gets a
+copy of the header's branch, so that the header is only executed once, as
+a guard in front of the loop. This saves one jump per iteration.
+hoist() moves loop-invariant expressions to a new preheader block in front
+of the loop header and keeps their values in new local slots. An
+expression is invariant if it only reads constants, locals that are not
+assigned in the loop, and memory that is not stored in the loop (of the
+same kind as in ValueNumbering) while the loop contains no calls. An
+expression that might trap (null reference, index, division) is only
+hoisted if it is certainly evaluated once the loop is entered, i.e. if its
+block dominates all exits and latches of the loop, and if the loop has no
+calls, input or output that could be observed before it.
+*/
+package MJ.IR;
+
+import java.util.*;
+
+class Loops {
+	private static final int maxSlots = 256;	// enter and load have 1-byte slot numbers
+	private static final int maxCopy = 16;		// largest condition that is copied by rotate()
+	private static final int loopWeight = 8;	// assumed number of iterations of a loop
+
+	private final Method m;
+
+	Loops(Method m) { this.m = m; }
+
+	// Headers of all loops, inner loops before the loops that contain them
+	private List<Block> headers() {
+		m.dominators();
+		final Map<Block, Integer> size = new HashMap<Block, Integer>();
+		for (Block h : m.blocks)
+			if (!latches(h).isEmpty()) size.put(h, body(h).size());
+		List<Block> list = new ArrayList<Block>(size.keySet());
+		Collections.sort(list, new Comparator<Block>() {
+			public int compare(Block a, Block b) { return size.get(a) - size.get(b); }
+		});
+		return list;
+	}
+
+	// Sources of the back edges to h (dominators must be up to date)
+	private static List<Block> latches(Block h) {
+		List<Block> list = new ArrayList<Block>();
+		for (Block p : h.preds)
+			if (Method.dominates(h, p)) list.add(p);
+		return list;
+	}
+
+	// Blocks of the natural loop with header h
+	private static Set<Block> body(Block h) {
+		Set<Block> body = new HashSet<Block>();
+		body.add(h);
+		Deque<Block> work = new ArrayDeque<Block>(latches(h));
+		while (!work.isEmpty()) {
+			Block b = work.pop();
+			if (body.add(b))
+				for (Block p : b.preds) work.push(p);
+		}
+		return body;
+	}
+
+	// Number of loops that contain every block
+	Map<Block, Integer> depths() {
+		Map<Block, Integer> depth = new HashMap<Block, Integer>();
+		for (Block b : m.blocks) depth.put(b, 0);
+		for (Block h : headers())
+			for (Block b : body(h)) depth.put(b, depth.get(b) + 1);
+		return depth;
+	}
+
+	// Assumed number of executions of a block with loop depth d
+	static int weight(int d) {
+		int w = 1;
+		for (; d > 0 && w < 1 << 20; d--) w *= loopWeight;
+		return w;
+	}
+
+	//---------- loop rotation ----------
+
+	// Returns true if loops were rotated
+	boolean rotate() {
+		boolean changed = false;
+		for (Block h : headers()) {
+			if (h.term != Block.Branch || !h.stats.isEmpty()
+				|| h.left.size() + h.right.size() > maxCopy) continue;
+			Set<Block> body = body(h);
+			boolean succIn = body.contains(h.succ), failIn = body.contains(h.fail);
+			if (succIn == failIn) continue; // no exit or no loop body
+			Block first = succIn ? h.succ : h.fail;
+			if (first.preds.size() != 1) continue;
+			List<Block> latches = latches(h);
+			boolean gotos = true;
+			for (Block l : latches) gotos &= l.term == Block.Goto;
+			if (!gotos) continue;
+			for (Block l : latches) {
+				l.term = Block.Branch;
+				l.cond = h.cond;
+				l.left = h.left.deepCopy(); l.right = h.right.deepCopy();
+				l.succ = h.succ; l.fail = h.fail;
+			}
+			m.update();
+			m.dominators();
+			changed = true;
+		}
+		return changed;
+	}
+
+	//---------- loop-invariant code motion ----------
+
+	private Set<Block> body;
+	private final BitSet assigned = new BitSet();	// local slots assigned in the loop
+	private final Set<String> stored = new HashSet<String>();	// kinds of locations stored in the loop
+	private boolean calls;		// the loop contains calls
+	private boolean effects;	// the loop contains calls, input or output
+	private Block pre;			// preheader
+	private Map<String, Node> hoisted;	// temporaries of the hoisted expressions by shape
+
+	// Returns true if expressions were hoisted
+	boolean hoist() {
+		boolean changed = false;
+		for (Block h : headers()) {
+			m.dominators();
+			body = body(h);
+			List<Block> exits = new ArrayList<Block>(latches(h));
+			assigned.clear(); stored.clear(); calls = effects = false;
+			for (Block b : body) {
+				for (Stat s : b.stats) {
+					if (s.kind == Stat.Assign) {
+						if (s.dest.kind == Node.Local) assigned.set(s.dest.val);
+						else stored.add(s.dest.location());
+						scan(s.dest.left); scan(s.dest.right);
+					} else if (s.kind == Stat.Print || s.kind == Stat.BPrint) effects = true;
+					scan(s.src); scan(s.width);
+				}
+				scan(b.left); scan(b.right); scan(b.value);
+				boolean exit = b.term == Block.Return || b.term == Block.Trap;
+				for (int i = 0; i < b.nSuccs(); i++) exit |= !body.contains(b.succ(i));
+				if (exit) exits.add(b);
+			}
+			pre = null;
+			hoisted = new HashMap<String, Node>();
+			for (Block b : new ArrayList<Block>(m.blocks)) { // the preheader is added on the way
+				if (!body.contains(b)) continue;
+				boolean certain = !effects;
+				for (Block e : exits) certain &= Method.dominates(b, e);
+				for (Stat s : b.stats) {
+					if (s.dest != null) {
+						s.dest.left = replace(s.dest.left, h, certain);
+						s.dest.right = replace(s.dest.right, h, certain);
+					}
+					s.src = replace(s.src, h, certain);
+					s.width = replace(s.width, h, certain);
+				}
+				b.left = replace(b.left, h, certain);
+				b.right = replace(b.right, h, certain);
+				b.value = replace(b.value, h, certain);
+			}
+			if (pre != null) changed = true;
+		}
+		return changed;
+	}
+
+	// Collect the temporaries defined, calls and input in x
+	private void scan(Node x) {
+		if (x == null) return;
+		if (x.kind == Node.Def) assigned.set(x.val);
+		else if (x.kind == Node.Call) calls = effects = true;
+		else if (x.kind == Node.Read || x.kind == Node.BRead) effects = true;
+		scan(x.left); scan(x.right);
+		if (x.args != null)
+			for (Node a : x.args) scan(a);
+	}
+
+	// Is x invariant in the loop?
+	private boolean invariant(Node x) {
+		switch (x.kind) {
+			case Node.Con:
+				return true;
+			case Node.Local:
+				return !assigned.get(x.val);
+			case Node.Static:
+				return !calls && !stored.contains(x.location());
+			case Node.Fld:
+				return !calls && !stored.contains(x.location()) && invariant(x.left);
+			case Node.Elem:
+				return !calls && !stored.contains(x.location()) && invariant(x.left) && invariant(x.right);
+			case Node.Neg: case Node.Len:
+				return invariant(x.left);
+			case Node.Add: case Node.Sub: case Node.Mul: case Node.Div:
+			case Node.Rem: case Node.Shl: case Node.Shr:
+				return invariant(x.left) && invariant(x.right);
+			default:
+				return false;
+		}
+	}
+
+	// Might the evaluation of x trap?
+	private static boolean mayTrap(Node x) {
+		switch (x.kind) {
+			case Node.Fld: case Node.Elem: case Node.Len:
+				return true;
+			case Node.Div: case Node.Rem:
+				if (x.right.kind != Node.Con || x.right.val == 0) return true;
+		}
+		return x.left != null && mayTrap(x.left) || x.right != null && mayTrap(x.right);
+	}
+
+	// Key that is equal for trees that compute the same value in the loop
+	private static String shape(Node x) {
+		StringBuilder b = new StringBuilder();
+		b.append(x.kind).append(':').append(x.val);
+		if (x.kind == Node.Elem && x.location().equals("b")) b.append('b');
+		if (x.left != null) b.append('(').append(shape(x.left));
+		if (x.right != null) b.append(',').append(shape(x.right));
+		if (x.left != null) b.append(')');
+		return b.toString();
+	}
+
+	// Replace the maximal invariant subtrees of x (in the loop with header h)
+	// by loads of temporaries that are assigned in the preheader
+	private Node replace(Node x, Block h, boolean certain) {
+		if (x == null || x.kind == Node.Con || x.kind == Node.Local) return x;
+		if (invariant(x) && (certain || !mayTrap(x))) {
+			String k = shape(x);
+			Node t = hoisted.get(k);
+			if (t == null) {
+				if (m.nVars >= maxSlots) return x;
+				t = new Node(Node.Local, x.type);
+				t.val = m.nVars++;
+				preheader(h).stats.add(new Stat(Stat.Assign, t, x));
+				hoisted.put(k, t);
+			}
+			return t.copy();
+		}
+		x.left = replace(x.left, h, certain);
+		x.right = replace(x.right, h, certain);
+		if (x.args != null)
+			for (int i = 0; i < x.args.length; i++) x.args[i] = replace(x.args[i], h, certain);
+		return x;
+	}
+
+	// The preheader of the loop with header h; it is created on demand
+	private Block preheader(Block h) {
+		if (pre != null) return pre;
+		pre = m.newBlock();
+		pre.term = Block.Goto;
+		pre.succ = h;
+		for (Block p : new ArrayList<Block>(h.preds))
+			if (!body.contains(p))
+				for (int i = 0; i < p.nSuccs(); i++)
+					if (p.succ(i) == h) p.setSucc(i, pre);
+		m.blocks.add(m.blocks.indexOf(h), pre);
+		m.update();
+		return pre;
+	}
+}
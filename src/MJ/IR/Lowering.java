@@ -0,0 +1,138 @@
+/* MicroJava IR Lowering
+   =====================
+Generates the code of a method from its IR with the primitives of Code,
+replacing the code from which the IR was built. The blocks are laid out in
+the order of Method.blocks; a jump to the next block is omitted, and a
+branch whose condition holds for the next block is inverted. Jumps are
+emitted in their wide form and patched when all block addresses are known;
+Code.finish gives them their final form later.
+*/
+package MJ.IR;
+
+import java.util.*;
+import MJ.CodeGen.*;
+import MJ.SymTab.*;
+
+public class Lowering {
+	private final Code code;
+	private final List<Integer> fixPos = new ArrayList<Integer>();	// address of a jump target ...
+	private final List<Block> fixBlock = new ArrayList<Block>();	// ... and the block it refers to
+
+	public Lowering(Code code) { this.code = code; }
+
+	// Replace the code of m (from m.adr to the end of the buffer) with code generated from the IR
+	public void lower(Method m) {
+		code.pc = m.adr;
+		code.put(Code.enter);
+		code.put(m.nPars);
+		code.put(m.nVars);
+		for (int i = 0; i < m.blocks.size(); i++) {
+			Block b = m.blocks.get(i);
+			Block next = i + 1 < m.blocks.size() ? m.blocks.get(i + 1) : null;
+			b.adr = code.pc;
+			for (Stat s : b.stats) stat(s);
+			switch (b.term) {
+				case Block.Goto:
+					if (b.succ != next) jump(b.succ);
+					break;
+				case Block.Branch:
+					load(b.left); load(b.right);
+					if (b.fail == next) {
+						code.putTrueJump(b.cond, 0); fix(b.succ);
+					} else if (b.succ == next) {
+						code.putFalseJump(b.cond, 0); fix(b.fail);
+					} else {
+						code.putTrueJump(b.cond, 0); fix(b.succ);
+						jump(b.fail);
+					}
+					break;
+				case Block.Return:
+					if (b.value != null) load(b.value);
+					code.put(Code.exit);
+					code.put(Code.return_);
+					break;
+				default:
+					code.put(Code.trap);
+					code.put(b.trap);
+			}
+		}
+		for (int i = 0; i < fixPos.size(); i++) code.put4(fixPos.get(i), fixBlock.get(i).adr);
+	}
+
+	private void jump(Block b) {
+		code.putJump(0);
+		fix(b);
+	}
+
+	// The jump just generated goes to block b
+	private void fix(Block b) {
+		fixPos.add(code.pc - 4);
+		fixBlock.add(b);
+	}
+
+	private static Operand operand(int kind, int adr, Struct type) {
+		Operand x = new Operand(kind, 0, type);
+		x.adr = adr;
+		return x;
+	}
+
+	// Designator for x; the object address and index of Fld and Elem are loaded
+	private Operand designator(Node x) {
+		switch (x.kind) {
+			case Node.Local:  return operand(Operand.Local, x.val, x.type);
+			case Node.Static: return operand(Operand.Static, x.val, x.type);
+			case Node.Fld:    load(x.left); return operand(Operand.Fld, x.val, x.type);
+			default:          load(x.left); load(x.right); return operand(Operand.Elem, 0, x.type);
+		}
+	}
+
+	// Load the value of x to the expression stack
+	private void load(Node x) {
+		switch (x.kind) {
+			case Node.Con:
+				code.load(new Operand(x.val)); break;
+			case Node.Local: case Node.Static: case Node.Fld: case Node.Elem:
+				code.load(designator(x)); break;
+			case Node.Call:
+				for (Node a : x.args) load(a);
+				code.putCall(x.val); break;
+			case Node.Neg:
+				load(x.left); code.put(Code.neg); break;
+			case Node.Add: case Node.Sub: case Node.Mul: case Node.Div: case Node.Rem:
+				load(x.left); load(x.right); code.put(Code.add + x.kind - Node.Add); break;
+			case Node.Shl: case Node.Shr:
+				load(x.left); load(x.right); code.put(Code.shl + x.kind - Node.Shl); break;
+			case Node.New:
+				code.put(Code.new_); code.put2(x.val); break;
+			case Node.NewArray:
+				load(x.left); code.put(Code.newarray); code.put(x.val); break;
+			case Node.Len:
+				load(x.left); code.put(Code.arraylength); break;
+			case Node.Read:
+				code.put(Code.read); break;
+			case Node.BRead:
+				code.put(Code.bread); break;
+			case Node.Def:
+				load(x.left); code.put(Code.dup);
+				code.assign(operand(Operand.Local, x.val, x.type), new Operand(Operand.Stack, 0, x.type));
+				break;
+		}
+	}
+
+	private void stat(Stat s) {
+		switch (s.kind) {
+			case Stat.Assign:
+				Operand x = designator(s.dest);
+				load(s.src);
+				code.assign(x, new Operand(Operand.Stack, 0, s.src.type));
+				break;
+			case Stat.Eval:
+				load(s.src);
+				if (s.src.kind != Node.Call || s.src.type != Tab.noType) code.put(Code.pop);
+				break;
+			default:
+				load(s.src); load(s.width);
+				code.put(s.kind == Stat.Print ? Code.print : Code.bprint);
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/* MicroJava IR Methods
+   ====================
+The intermediate representation of one method: its control flow graph of
+basic blocks. blocks holds the blocks in layout order, starting with the
+entry block.
+*/
+package MJ.IR;
+
+import java.io.*;
+import java.util.*;
+import MJ.SymTab.*;
+
+public class Method {
+	public final Obj obj;		// the method
+	public final int adr;		// address of the method's code
+	public int nPars;			// number of parameters
+	public int nVars;			// number of local variable slots (parameters included)
+	public List<Block> blocks = new ArrayList<Block>();
+	private int nextId;
+
+	public Method(Obj obj, int adr) { this.obj = obj; this.adr = adr; }
+
+	public Block entry() { return blocks.get(0); }
+
+	public Block newBlock() { return new Block(nextId++); }
+
+	// Recompute the predecessor lists from the terminators
+	public void update() {
+		for (Block b : blocks) b.preds.clear();
+		for (Block b : blocks)
+			for (int i = 0; i < b.nSuccs(); i++) b.succ(i).preds.add(b);
+	}
+
+	// Remove the blocks that cannot be reached from the entry; the layout
+	// order of the others is kept. Returns true if blocks were removed.
+	public boolean removeUnreachable() {
+		Set<Block> reached = new HashSet<Block>();
+		Deque<Block> work = new ArrayDeque<Block>();
+		work.push(entry());
+		reached.add(entry());
+		while (!work.isEmpty()) {
+			Block b = work.pop();
+			for (int i = 0; i < b.nSuccs(); i++)
+				if (reached.add(b.succ(i))) work.push(b.succ(i));
+		}
+		if (reached.size() == blocks.size()) return false;
+		List<Block> list = new ArrayList<Block>();
+		for (Block b : blocks)
+			if (reached.contains(b)) list.add(b);
+		blocks = list;
+		update();
+		return true;
+	}
+
+	// Compute the dominator tree (Block.idom, Block.children) with the
+	// algorithm of Cooper, Harvey and Kennedy; all blocks must be reachable.
+	// Returns the blocks in reverse postorder (see Block.order).
+	public List<Block> dominators() {
+		List<Block> rpo = postorder();
+		Collections.reverse(rpo);
+		for (int i = 0; i < rpo.size(); i++) {
+			Block b = rpo.get(i);
+			b.order = i; b.idom = null; b.children.clear();
+		}
+		entry().idom = entry();
+		boolean changed;
+		do {
+			changed = false;
+			for (int i = 1; i < rpo.size(); i++) {
+				Block b = rpo.get(i), d = null;
+				for (Block p : b.preds)
+					if (p.idom != null) d = d == null ? p : intersect(p, d);
+				if (d != b.idom) { b.idom = d; changed = true; }
+			}
+		} while (changed);
+		for (int i = 1; i < rpo.size(); i++) rpo.get(i).idom.children.add(rpo.get(i));
+		return rpo;
+	}
+
+	// The reachable blocks in postorder of a depth-first search from the entry
+	public List<Block> postorder() {
+		List<Block> list = new ArrayList<Block>();
+		Set<Block> visited = new HashSet<Block>();
+		Deque<Block> path = new ArrayDeque<Block>();	// blocks being visited ...
+		Deque<Integer> next = new ArrayDeque<Integer>();	// ... and their next successor
+		visited.add(entry());
+		path.push(entry()); next.push(0);
+		while (!path.isEmpty()) {
+			Block b = path.peek();
+			int i = next.pop();
+			if (i < b.nSuccs()) {
+				next.push(i + 1);
+				if (visited.add(b.succ(i))) { path.push(b.succ(i)); next.push(0); }
+			} else {
+				path.pop();
+				list.add(b);
+			}
+		}
+		return list;
+	}
+
+	private static Block intersect(Block a, Block b) {
+		while (a != b) {
+			while (a.order > b.order) a = a.idom;
+			while (b.order > a.order) b = b.idom;
+		}
+		return a;
+	}
+
+	// Does a dominate b?
+	public static boolean dominates(Block a, Block b) {
+		while (b.order > a.order) b = b.idom;
+		return a == b;
+	}
+
+	public void dump(PrintStream out) {
+		out.println("-- IR of " + obj.name + " (" + nPars + " parameters, " + nVars + " slots)");
+		for (Block b : blocks) out.print(b);
+	}
+}
@@ -0,0 +1,126 @@
+/* MicroJava IR Expression Nodes
+   =============================
+An expression of the intermediate representation is a tree of Nodes. Every
+node carries the type of its value; where the code does not reveal the type
+(e.g. the class of an object created with new) it is Tab.noType.
+*/
+package MJ.IR;
+
+import MJ.SymTab.*;
+
+public class Node {
+	public static final int // node kinds
+		Con = 0, Local = 1, Static = 2, Fld = 3, Elem = 4, Call = 5,
+		Neg = 6, Add = 7, Sub = 8, Mul = 9, Div = 10, Rem = 11, Shl = 12, Shr = 13,
+		New = 14, NewArray = 15, Len = 16, Read = 17, BRead = 18, Def = 19;
+
+	public int    kind;
+	public Struct type;		// type of the value
+	public int    val;		// Con: value, Local, Def: slot, Static: address, Fld: offset,
+							// Call: method address, New: size, NewArray: 0 = char elements
+	public Obj    obj;		// Local, Static: variable, Fld: field, Call: method (null if unknown)
+	public Node   left;		// Neg, binary operators, Len, NewArray: (left) operand; Fld: object; Elem: array;
+							// Def: value that is also stored in local slot val
+	public Node   right;	// binary operators: right operand; Elem: index
+	public Node[] args;		// Call: actual parameters
+
+	public Node(int kind, Struct type) {
+		this.kind = kind; this.type = type;
+	}
+
+	public Node(int kind, Struct type, Node left, Node right) {
+		this.kind = kind; this.type = type; this.left = left; this.right = right;
+	}
+
+	public static Node con(int val) {
+		Node x = new Node(Con, Tab.intType);
+		x.val = val;
+		return x;
+	}
+
+	// A copy of this node; the operands are shared
+	public Node copy() {
+		Node x = new Node(kind, type, left, right);
+		x.val = val; x.obj = obj; x.args = args;
+		return x;
+	}
+
+	// A copy of the whole tree
+	public Node deepCopy() {
+		Node x = copy();
+		if (left != null) x.left = left.deepCopy();
+		if (right != null) x.right = right.deepCopy();
+		if (args != null) {
+			x.args = new Node[args.length];
+			for (int i = 0; i < args.length; i++) x.args[i] = args[i].deepCopy();
+		}
+		return x;
+	}
+
+	// Number of nodes of the tree
+	public int size() {
+		int n = 1;
+		if (left != null) n += left.size();
+		if (right != null) n += right.size();
+		if (args != null)
+			for (Node a : args) n += a.size();
+		return n;
+	}
+
+	// Static, Fld, Elem: kind of memory location that a load or store accesses:
+	// the static variable, fields with the same offset, word or byte arrays
+	public String location() {
+		switch (kind) {
+			case Static: return "s" + val;
+			case Fld:    return "f" + val;
+			default:     return type == Tab.charType ? "b" : "w";
+		}
+	}
+
+	public boolean isBinary() { return kind >= Add && kind <= Shr; }
+
+	// Does evaluating this tree have an effect besides its value (calls, input, stores to temporaries)?
+	public boolean hasSideEffects() {
+		if (kind == Call || kind == Read || kind == BRead || kind == New || kind == NewArray || kind == Def) return true;
+		if (left != null && left.hasSideEffects()) return true;
+		if (right != null && right.hasSideEffects()) return true;
+		if (args != null)
+			for (Node a : args) if (a.hasSideEffects()) return true;
+		return false;
+	}
+
+	// Can the evaluation be dropped if the value is not needed? This excludes
+	// side effects and runtime errors (null references, indices, division by zero).
+	public boolean isRemovable() {
+		switch (kind) {
+			case Con: case Local: case Static:
+				return true;
+			case Neg:
+				return left.isRemovable();
+			case Add: case Sub: case Mul: case Shl: case Shr:
+				return left.isRemovable() && right.isRemovable();
+			case Div: case Rem:
+				return left.isRemovable() && right.kind == Con && right.val != 0;
+			default:
+				return false;
+		}
+	}
+
+	private static final String[] name = {
+		"con", "local", "static", "fld", "elem", "call", "neg", "add", "sub", "mul",
+		"div", "rem", "shl", "shr", "new", "newarray", "len", "read", "bread", "def"
+	};
+
+	public String toString() {
+		StringBuilder b = new StringBuilder(name[kind]);
+		switch (kind) {
+			case Con: case Local: case Static: case Fld: case Call: case New: case Def:
+				b.append(' ').append(obj != null ? obj.name : String.valueOf(val));
+		}
+		if (left != null) b.append(' ').append(left);
+		if (right != null) b.append(' ').append(right);
+		if (args != null)
+			for (Node a : args) b.append(' ').append(a);
+		return "(" + b + ")";
+	}
+}
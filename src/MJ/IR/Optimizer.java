@@ -0,0 +1,117 @@
+/* MicroJava IR Optimizer
+   ======================
+Runs when a method has been parsed (only with -O): builds the IR of its code,
+applies the passes of the pass table in order and generates the code again
+(see Builder and Lowering). Without -O the parser's code is used unchanged.
+An optimizer belongs to one compilation; it remembers the static variables
+that the optimized methods access, which static promotion needs at calls,
+and the optimized IR of the leaf methods for inlining. The listing reports
+the inlined calls and how the code size of the method changed.
+*/
+package MJ.IR;
+
+import java.util.*;
+import MJ.*;
+import MJ.CodeGen.*;
+import MJ.SymTab.*;
+
+public class Optimizer {
+	private final CompilationContext ctx;
+	private final Map<Obj, Set<Integer>> touched = new HashMap<Obj, Set<Integer>>();	// see Statics
+	private final Map<Obj, Method> bodies = new HashMap<Obj, Method>();	// see Inliner
+	private String inlined;	// report of the inlining pass
+
+	private static abstract class Pass {
+		final String name;
+		Pass(String name) { this.name = name; }
+		// Transform m; returns true if it was changed
+		abstract boolean run(Method m);
+	}
+
+	private final Pass[] passes = {
+		new Pass("inlining") {
+			boolean run(Method m) {
+				Inliner inliner = new Inliner(m, bodies);
+				boolean changed = inliner.run();
+				inlined = inliner.report();
+				return changed;
+			}
+		},
+		new Pass("unreachable code") {
+			boolean run(Method m) {
+				boolean changed = false;
+				for (Block b : m.blocks)
+					if (b.term == Block.Branch && (b.succ == b.fail || b.left.kind == Node.Con && b.right.kind == Node.Con)) {
+						if (b.succ != b.fail && !holds(b.cond, b.left.val, b.right.val)) b.succ = b.fail;
+						// the comparison goes, but calls and runtime errors of its operands stay
+						if (!b.left.isRemovable()) b.stats.add(new Stat(Stat.Eval, null, b.left));
+						if (!b.right.isRemovable()) b.stats.add(new Stat(Stat.Eval, null, b.right));
+						b.term = Block.Goto;
+						b.left = b.right = null; b.fail = null;
+						changed = true;
+					}
+				if (changed) m.update();
+				return m.removeUnreachable() | changed;
+			}
+		},
+		new Pass("tail calls") {
+			boolean run(Method m) { return new TailCalls(m).run(); }
+		},
+		new Pass("value numbering") {
+			boolean run(Method m) { return new ValueNumbering(m).run(); }
+		},
+		new Pass("loop rotation") {
+			boolean run(Method m) { return new Loops(m).rotate(); }
+		},
+		new Pass("loop invariants") {
+			boolean run(Method m) { return new Loops(m).hoist(); }
+		},
+		new Pass("static promotion") {
+			boolean run(Method m) { return new Statics(m, touched).promote(); }
+		},
+		new Pass("dead code") {
+			boolean run(Method m) {
+				boolean changed = false;
+				while (new DeadCode(m).run()) changed = true; // removed uses can make more assignments dead
+				return changed;
+			}
+		},
+		new Pass("slot allocation") {
+			boolean run(Method m) { return new Slots(m).run(); }
+		},
+	};
+
+	public Optimizer(CompilationContext ctx) { this.ctx = ctx; }
+
+	// Does a cond b hold for constants a and b?
+	private static boolean holds(int cond, int a, int b) {
+		switch (cond) {
+			case Code.eq: return a == b;
+			case Code.ne: return a != b;
+			case Code.lt: return a < b;
+			case Code.le: return a <= b;
+			case Code.gt: return a > b;
+			default:      return a >= b;
+		}
+	}
+
+	// Optimize the code of method meth, the last code in the buffer; scope is the method scope
+	public void optimize(Obj meth, Scope scope) {
+		Method m = new Builder(ctx.code, meth, scope).build();
+		if (m == null) return; // code the IR does not cover: keep it
+		StringBuilder applied = new StringBuilder();
+		for (Pass p : passes)
+			if (p.run(m)) applied.append(applied.length() > 0 ? ", " : "").append(p.name);
+		int size = ctx.code.pc - m.adr;
+		new Lowering(ctx.code).lower(m);
+		Set<Integer> statics = Statics.touched(m, touched);
+		if (statics != null) touched.put(meth, statics);
+		if (Inliner.isLeaf(m)) bodies.put(meth, m);
+		if (ctx.listing) {
+			m.dump(ctx.out);
+			if (applied.length() > 0) ctx.out.println("-- optimized: " + applied);
+			if (inlined.length() > 0) ctx.out.println("-- inlined: " + inlined);
+			if (applied.length() > 0) ctx.out.println("-- code size: " + size + " -> " + (ctx.code.pc - m.adr) + " bytes");
+		}
+	}
+}
@@ -0,0 +1,193 @@
+/* MicroJava IR Slot Allocation
+   ============================
+Assigns the local variables and temporaries of a method to as few slots as
+possible. Two locals interfere if one is assigned while the other is live
+(except for a copy of one into the other); locals that do not interfere
+can share a slot. A local that is read before it is assigned starts with
+the value 0 of its slot at the method entry, so it interferes with all
+locals that are live there. The parameters keep their slots.
+The other locals are colored greedily in the order of their weighted uses
+(uses in loops count more, see Loops.weight), each one with the lowest slot
+that none of its neighbors has. The most used locals thus get the slots 0-3,
+which have the short load and store instructions.
+*/
+package MJ.IR;
+
+import java.util.*;
+
+class Slots {
+	private final Method m;
+	private final Map<Block, BitSet> liveIn = new HashMap<Block, BitSet>();
+	private BitSet[] conflicts;		// interference graph
+	private int[] weight;			// weighted uses of every slot
+	private final BitSet used = new BitSet();	// slots that occur in the method
+
+	Slots(Method m) { this.m = m; }
+
+	// Returns true if locals were moved to other slots
+	boolean run() {
+		conflicts = new BitSet[m.nVars];
+		for (int i = 0; i < m.nVars; i++) conflicts[i] = new BitSet();
+		weight = new int[m.nVars];
+		liveness();
+		Map<Block, Integer> depth = new Loops(m).depths();
+		for (Block b : m.blocks) {
+			int w = Loops.weight(depth.get(b));
+			for (Stat s : b.stats) {
+				count(s.dest, w); count(s.src, w); count(s.width, w);
+			}
+			count(b.left, w); count(b.right, w); count(b.value, w);
+			transfer(b, liveOut(b), true);
+		}
+		BitSet entry = (BitSet)liveIn.get(m.entry()).clone();
+		entry.set(0, m.nPars);
+		for (int i = entry.nextSetBit(0); i >= 0; i = entry.nextSetBit(i + 1)) interfere(i, entry);
+		return color();
+	}
+
+	// Slots that are read before they are assigned (parameters included)
+	BitSet entryLive() {
+		liveness();
+		return liveIn.get(m.entry());
+	}
+
+	private void liveness() {
+		for (Block b : m.blocks) liveIn.put(b, new BitSet());
+		List<Block> order = m.postorder();	// successors before predecessors
+		boolean changed;
+		do {
+			changed = false;
+			for (Block b : order) {
+				BitSet in = transfer(b, liveOut(b), false);
+				if (!in.equals(liveIn.get(b))) { liveIn.put(b, in); changed = true; }
+			}
+		} while (changed);
+	}
+
+	private BitSet liveOut(Block b) {
+		BitSet out = new BitSet();
+		for (int i = 0; i < b.nSuccs(); i++) out.or(liveIn.get(b.succ(i)));
+		return out;
+	}
+
+	// Compute the live locals at the start of b from those at its end; if
+	// build is set, also add the conflicts of the assignments in b
+	private BitSet transfer(Block b, BitSet live, boolean build) {
+		BitSet read = new BitSet(), defs = new BitSet();	// of the terminator
+		if (b.term == Block.Branch) {
+			uses(b.left, read); uses(b.right, read);
+			defs(b.left, defs); defs(b.right, defs);
+		} else if (b.term == Block.Return && b.value != null) {
+			uses(b.value, read); defs(b.value, defs);
+		}
+		if (build) define(defs, read, live);
+		live.or(read);
+		live.andNot(defs);
+		for (ListIterator<Stat> it = b.stats.listIterator(b.stats.size()); it.hasPrevious(); ) {
+			Stat s = it.previous();
+			read = new BitSet(); defs = new BitSet();
+			if (s.dest != null) { uses(s.dest.left, read); uses(s.dest.right, read); }
+			uses(s.src, read); uses(s.width, read);
+			if (s.dest != null) { defs(s.dest.left, defs); defs(s.dest.right, defs); }
+			defs(s.src, defs); defs(s.width, defs);
+			if (build) define(defs, read, live);
+			if (s.kind == Stat.Assign && s.dest.kind == Node.Local) {
+				int d = s.dest.val;
+				if (build) {
+					BitSet after = (BitSet)live.clone();
+					if (s.src.kind == Node.Local) after.clear(s.src.val); // a copy: same value
+					interfere(d, after);
+				}
+				live.clear(d);
+			}
+			live.or(read);
+			live.andNot(defs);
+		}
+		return live;
+	}
+
+	// Add the conflicts of the temporaries that a statement or terminator defines:
+	// they are live from their definition to their last use
+	private void define(BitSet defs, BitSet read, BitSet live) {
+		if (defs.isEmpty()) return;
+		BitSet around = (BitSet)live.clone();
+		around.or(read);
+		for (int t = defs.nextSetBit(0); t >= 0; t = defs.nextSetBit(t + 1)) interfere(t, around);
+	}
+
+	private void interfere(int a, BitSet live) {
+		for (int b = live.nextSetBit(0); b >= 0; b = live.nextSetBit(b + 1))
+			if (b != a) { conflicts[a].set(b); conflicts[b].set(a); }
+	}
+
+	// Add the slots that x reads to set
+	private static void uses(Node x, BitSet set) {
+		if (x == null) return;
+		if (x.kind == Node.Local) set.set(x.val);
+		uses(x.left, set); uses(x.right, set);
+		if (x.args != null)
+			for (Node a : x.args) uses(a, set);
+	}
+
+	// Add the temporaries that x defines (Node.Def) to set
+	private static void defs(Node x, BitSet set) {
+		if (x == null) return;
+		if (x.kind == Node.Def) set.set(x.val);
+		defs(x.left, set); defs(x.right, set);
+		if (x.args != null)
+			for (Node a : x.args) defs(a, set);
+	}
+
+	// Add weight w for every occurrence of a slot in x
+	private void count(Node x, int w) {
+		if (x == null) return;
+		if (x.kind == Node.Local || x.kind == Node.Def) {
+			used.set(x.val);
+			weight[x.val] += w;
+		}
+		count(x.left, w); count(x.right, w);
+		if (x.args != null)
+			for (Node a : x.args) count(a, w);
+	}
+
+	// Give every local a slot; returns true if a slot changed
+	private boolean color() {
+		List<Integer> locals = new ArrayList<Integer>();
+		for (int i = used.nextSetBit(m.nPars); i >= 0; i = used.nextSetBit(i + 1)) locals.add(i);
+		Collections.sort(locals, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return weight[a] != weight[b] ? weight[b] - weight[a] : a - b;
+			}
+		});
+		final int[] slot = new int[m.nVars];
+		Arrays.fill(slot, -1);
+		for (int i = 0; i < m.nPars; i++) slot[i] = i;
+		int nVars = m.nPars;
+		boolean changed = false;
+		for (int x : locals) {
+			BitSet taken = new BitSet();
+			for (int y = conflicts[x].nextSetBit(0); y >= 0; y = conflicts[x].nextSetBit(y + 1))
+				if (slot[y] >= 0) taken.set(slot[y]);
+			slot[x] = taken.nextClearBit(0);
+			nVars = Math.max(nVars, slot[x] + 1);
+			changed |= slot[x] != x;
+		}
+		if (!changed && nVars == m.nVars) return false;
+		for (Block b : m.blocks) {
+			for (Stat s : b.stats) {
+				rename(s.dest, slot); rename(s.src, slot); rename(s.width, slot);
+			}
+			rename(b.left, slot); rename(b.right, slot); rename(b.value, slot);
+		}
+		m.nVars = nVars;
+		return true;
+	}
+
+	private static void rename(Node x, int[] slot) {
+		if (x == null) return;
+		if (x.kind == Node.Local || x.kind == Node.Def) x.val = slot[x.val];
+		rename(x.left, slot); rename(x.right, slot);
+		if (x.args != null)
+			for (Node a : x.args) rename(a, slot);
+	}
+}
@@ -0,0 +1,29 @@
+/* MicroJava IR Statements
+   =======================
+The statements of a basic block. Control flow is not a statement; it is the
+terminator of the block (see Block).
+*/
+package MJ.IR;
+
+public class Stat {
+	public static final int // statement kinds
+		Assign = 0, Eval = 1, Print = 2, BPrint = 3;
+
+	public int  kind;
+	public Node dest;	// Assign: Local, Static, Fld or Elem node that receives the value
+	public Node src;	// Assign: value; Eval: expression evaluated for its effect; Print, BPrint: value
+	public Node width;	// Print, BPrint: field width
+
+	public Stat(int kind, Node dest, Node src) {
+		this.kind = kind; this.dest = dest; this.src = src;
+	}
+
+	public String toString() {
+		switch (kind) {
+			case Assign: return dest + " = " + src;
+			case Eval:   return "eval " + src;
+			case Print:  return "print " + src + " " + width;
+			default:     return "bprint " + src + " " + width;
+		}
+	}
+}
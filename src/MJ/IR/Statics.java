@@ -0,0 +1,122 @@
+/* MicroJava IR Static Promotion
+   =============================
+Keeps static variables in local slots while a method runs: the slot is
+loaded from the static variable at the entry of the method, all accesses
+in the method use the slot (load/store instead of getstatic/putstatic),
+and if the method assigns the variable, the slot is written back before
+every return. A trap ends the program, so it needs no write-back.
+A static variable can only be promoted if no method that is called could
+observe it. For every method the optimizer records the static variables
+it accesses, directly or through its calls (see touched()); methods are
+only called after they are declared, except for recursive calls, so the
+callees are known when a method is optimized. A callee without a record
+(its code was not optimized, or it is the method itself) may access any
+static variable.
+Accesses are weighted by the loop nesting of their blocks; a variable is
+promoted if the weighted accesses outnumber the loads and stores that
+promotion adds.
+*/
+package MJ.IR;
+
+import java.util.*;
+import MJ.SymTab.*;
+
+class Statics {
+	private static final int maxSlots = 256;	// enter and load have 1-byte slot numbers
+
+	private final Method m;
+	private final Map<Obj, Set<Integer>> touched;	// static addresses accessed by the optimized methods
+	private final Map<Integer, Integer> weight = new HashMap<Integer, Integer>();	// weighted accesses by address
+	private final Map<Integer, Node> var = new HashMap<Integer, Node>();	// an access of every static
+	private final Map<Integer, Node> slot = new HashMap<Integer, Node>();	// promoted statics and their slots
+	private final Set<Integer> stored = new HashSet<Integer>();	// statics that are assigned
+	private Set<Integer> observed = new HashSet<Integer>();	// statics that callees access, null: all
+
+	Statics(Method m, Map<Obj, Set<Integer>> touched) {
+		this.m = m; this.touched = touched;
+	}
+
+	// Static addresses that m accesses directly or through calls; null if unknown
+	static Set<Integer> touched(Method m, Map<Obj, Set<Integer>> touched) {
+		Statics s = new Statics(m, touched);
+		s.scanAll(null);
+		if (s.observed == null) return null;
+		s.observed.addAll(s.weight.keySet());
+		return s.observed;
+	}
+
+	// Returns true if statics were promoted
+	boolean promote() {
+		scanAll(new Loops(m).depths());
+		if (observed == null) return false;
+		int returns = 0;
+		for (Block b : m.blocks)
+			if (b.term == Block.Return) returns++;
+		for (Map.Entry<Integer, Integer> e : weight.entrySet()) {
+			int adr = e.getKey();
+			int cost = 1 + (stored.contains(adr) ? returns : 0);
+			if (observed.contains(adr) || e.getValue() <= cost || m.nVars >= maxSlots) continue;
+			Node t = new Node(Node.Local, var.get(adr).type);
+			t.val = m.nVars++;
+			slot.put(adr, t);
+		}
+		if (slot.isEmpty()) return false;
+		for (Block b : m.blocks) {
+			for (Stat s : b.stats) {
+				replace(s.dest); replace(s.src); replace(s.width);
+			}
+			replace(b.left); replace(b.right); replace(b.value);
+		}
+		List<Stat> loads = new ArrayList<Stat>();
+		for (Map.Entry<Integer, Node> e : slot.entrySet()) {
+			Node t = e.getValue();
+			loads.add(new Stat(Stat.Assign, t.copy(), var.get(e.getKey()).copy()));
+			if (stored.contains(e.getKey()))
+				for (Block b : m.blocks)
+					if (b.term == Block.Return)
+						b.stats.add(new Stat(Stat.Assign, var.get(e.getKey()).copy(), t.copy()));
+		}
+		m.entry().stats.addAll(0, loads);
+		return true;
+	}
+
+	// Count the weighted accesses of statics and collect the statics that callees
+	// observe; depth is the loop depth of every block (null: count 1 for all)
+	private void scanAll(Map<Block, Integer> depth) {
+		for (Block b : m.blocks) {
+			int w = depth == null ? 1 : Loops.weight(depth.get(b));
+			for (Stat s : b.stats) {
+				if (s.kind == Stat.Assign && s.dest.kind == Node.Static) stored.add(s.dest.val);
+				scan(s.dest, w); scan(s.src, w); scan(s.width, w);
+			}
+			scan(b.left, w); scan(b.right, w); scan(b.value, w);
+		}
+	}
+
+	private void scan(Node x, int w) {
+		if (x == null) return;
+		if (x.kind == Node.Static) {
+			Integer old = weight.get(x.val);
+			weight.put(x.val, (old == null ? 0 : old) + w);
+			if (!var.containsKey(x.val)) var.put(x.val, x.copy());
+		} else if (x.kind == Node.Call && observed != null) {
+			Set<Integer> callee = x.obj == m.obj ? null : touched.get(x.obj);
+			if (callee == null) observed = null; else observed.addAll(callee);
+		}
+		scan(x.left, w); scan(x.right, w);
+		if (x.args != null)
+			for (Node a : x.args) scan(a, w);
+	}
+
+	// Turn an access of a promoted static into an access of its slot
+	private void replace(Node x) {
+		if (x == null) return;
+		if (x.kind == Node.Static && slot.containsKey(x.val)) {
+			Node t = slot.get(x.val);
+			x.kind = Node.Local; x.val = t.val; x.obj = null;
+		}
+		replace(x.left); replace(x.right);
+		if (x.args != null)
+			for (Node a : x.args) replace(a);
+	}
+}
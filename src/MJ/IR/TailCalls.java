@@ -0,0 +1,93 @@
+/* MicroJava IR Tail Calls
+   =======================
+Turns the calls of a method to itself in tail position into jumps: return
+f(...) and, in void methods, a call f(...) that is the last statement of a
+block from which the method returns without doing anything else (directly
+or through empty blocks, e.g. at the end of an if statement). The arguments
+are evaluated into new slots, then assigned to the parameters, the locals
+that the method reads before it assigns them are set to 0 again (as enter
+does), and the block jumps to the start of the method body. The method body
+is moved out of the entry block, which must have no predecessors (see
+Builder), into a new block that is the target of the jumps. Deep recursion
+thus runs in a loop without new frames.
+*/
+package MJ.IR;
+
+import java.util.*;
+import MJ.SymTab.*;
+
+class TailCalls {
+	private static final int maxSlots = 256;	// enter and load have 1-byte slot numbers
+
+	private final Method m;
+	private Block start;	// the method body after the entry
+	private BitSet zero;	// locals that are read before they are assigned
+
+	TailCalls(Method m) { this.m = m; }
+
+	// Returns true if tail calls were replaced
+	boolean run() {
+		boolean changed = false;
+		for (Block b : new ArrayList<Block>(m.blocks)) { // the start block is added on the way
+			if (b.term != Block.Return && !(b.term == Block.Goto && returns(b.succ))) continue;
+			Node call = b.term == Block.Return ? b.value : null;
+			if (call == null && !b.stats.isEmpty()) {
+				Stat last = b.stats.get(b.stats.size() - 1);
+				if (last.kind == Stat.Eval) call = last.src;
+			}
+			if (call == null || call.kind != Node.Call || call.obj != m.obj
+				|| m.nVars + m.nPars > maxSlots) continue;
+			if (call != b.value) b.stats.remove(b.stats.size() - 1);
+			jump(b, call.args);
+			changed = true;
+		}
+		if (changed) m.update();
+		return changed;
+	}
+
+	// Does b return without a value and without doing anything else, possibly
+	// after gotos through empty blocks (e.g. at the end of an if statement)?
+	private static boolean returns(Block b) {
+		Set<Block> seen = new HashSet<Block>();
+		while (b.term == Block.Goto && b.stats.isEmpty() && seen.add(b)) b = b.succ;
+		return b.term == Block.Return && b.value == null && b.stats.isEmpty();
+	}
+
+	// Replace the return or goto of b by the assignment of args to the parameters and a jump to the start
+	private void jump(Block b, Node[] args) {
+		if (start == null) {
+			zero = new Slots(m).entryLive();
+			Block entry = m.entry();
+			start = m.newBlock();
+			start.stats.addAll(entry.stats);
+			entry.stats.clear();
+			start.term = entry.term; start.cond = entry.cond; start.trap = entry.trap;
+			start.left = entry.left; start.right = entry.right; start.value = entry.value;
+			start.succ = entry.succ; start.fail = entry.fail;
+			entry.term = Block.Goto;
+			entry.succ = start;
+			entry.left = entry.right = entry.value = null; entry.fail = null;
+			m.blocks.add(1, start);
+		}
+		int[] temp = new int[args.length];	// slot of every changed argument, -1: unchanged
+		Arrays.fill(temp, -1);
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].kind == Node.Local && args[i].val == i) continue;
+			temp[i] = m.nVars++;
+			b.stats.add(new Stat(Stat.Assign, local(temp[i], args[i]), args[i]));
+		}
+		for (int i = 0; i < args.length; i++)
+			if (temp[i] >= 0) b.stats.add(new Stat(Stat.Assign, local(i, args[i]), local(temp[i], args[i])));
+		for (int i = zero.nextSetBit(m.nPars); i >= 0; i = zero.nextSetBit(i + 1))
+			b.stats.add(new Stat(Stat.Assign, local(i, null), Node.con(0)));
+		b.term = Block.Goto;
+		b.succ = start;
+		b.value = null;
+	}
+
+	private static Node local(int slot, Node arg) {
+		Node x = new Node(Node.Local, arg != null ? arg.type : Tab.intType);
+		x.val = slot;
+		return x;
+	}
+}
@@ -0,0 +1,269 @@
+/* MicroJava IR Global Value Numbering
+   ===================================
+Eliminates common subexpressions of a method with dominator-based value
+numbering over SSA form (Briggs, Cooper, Simpson).
+The locals are put into SSA form implicitly: every assignment to a local
+and every phi function (placed at the iterated dominance frontiers of the
+assignments) creates a new version of the local, and a use of the local
+refers to the version that reaches it. The phis are never materialized,
+because the locals themselves are not renamed.
+The blocks are visited in a preorder walk of the dominator tree, and the
+expressions of every block in evaluation order. An expression is keyed by
+its operator and the keys of its operands, a local by its version, and a
+load from memory (getstatic, getfield, aload) additionally by the state of
+the memory it reads: a store kills the loads of its kind of location
+(the static variable, fields with the same offset, word or byte arrays) and
+a call kills all of them. A block that is entered from other blocks than
+its immediate dominator starts with killed memory. The entry block has no
+predecessors (see Builder).
+A pure expression whose key was seen before in a dominating position is a
+redundant occurrence of it. If the saving pays for a temporary, the first
+occurrence stores its value into a new local slot (Node.Def) and the
+redundant ones load that slot.
+*/
+package MJ.IR;
+
+import java.util.*;
+
+class ValueNumbering {
+	private static final int maxSlots = 256;	// enter and load have 1-byte slot numbers
+	private static final int tempCost = 2;		// dup and store of the first occurrence
+
+	private final Method m;
+	private final int nSlots;			// number of slots of the source program
+	private int[] version;				// current version of every local slot
+	private int nextVersion;
+	private Map<Block, BitSet> phis = new HashMap<Block, BitSet>();	// slots that have a phi in the block
+
+	private final Map<String, Node> avail = new HashMap<String, Node>();	// first occurrences in dominating positions
+	private final List<String> availLog = new ArrayList<String>();		// keys in the order they became available
+	private final List<Integer> versionLog = new ArrayList<Integer>();	// slot and old version of every new version
+
+	private int memory;					// version of the memory as a whole (changed by calls)
+	private Map<String, Integer> kills = new HashMap<String, Integer>();	// version of every kind of location
+	private int nextMemory;
+
+	// redundant occurrences of every first occurrence that has some, in evaluation order
+	private final Map<Node, List<Node>> redundant = new LinkedHashMap<Node, List<Node>>();
+
+	ValueNumbering(Method m) {
+		this.m = m;
+		nSlots = m.nVars;
+	}
+
+	// Returns true if subexpressions were replaced
+	boolean run() {
+		List<Block> rpo = m.dominators();
+		placePhis(rpo);
+		version = new int[maxSlots];
+		walk();
+		Map<Node, Integer> cost = new HashMap<Node, Integer>();	// before any first occurrence is replaced
+		for (Node first : redundant.keySet()) cost.put(first, cost(first));
+		boolean changed = false;
+		for (Map.Entry<Node, List<Node>> e : redundant.entrySet()) {
+			Node first = e.getKey();
+			List<Node> uses = e.getValue();
+			if (uses.size() * (cost.get(first) - 1) <= tempCost || m.nVars >= maxSlots) continue;
+			int t = m.nVars++;
+			for (Node x : uses) {
+				x.kind = Node.Local; x.val = t;
+				x.obj = null; x.left = x.right = null; x.args = null;
+			}
+			Node value = first.copy();
+			first.kind = Node.Def; first.val = t; first.left = value;
+			first.obj = null; first.right = null; first.args = null;
+			changed = true;
+		}
+		return changed;
+	}
+
+	//---------- SSA construction ----------
+
+	// Place phis at the iterated dominance frontiers of the blocks that assign to a local
+	private void placePhis(List<Block> rpo) {
+		Map<Block, Set<Block>> df = new HashMap<Block, Set<Block>>();
+		for (Block b : rpo) df.put(b, new HashSet<Block>());
+		for (Block b : rpo)
+			if (b.preds.size() > 1)
+				for (Block p : b.preds)
+					for (Block r = p; r != b.idom; r = r.idom) df.get(r).add(b);
+		Map<Integer, Set<Block>> defs = new HashMap<Integer, Set<Block>>();
+		for (Block b : rpo) {
+			for (Stat s : b.stats) {
+				if (s.kind == Stat.Assign && s.dest.kind == Node.Local) def(s.dest.val, b, defs);
+				else if (s.dest != null) { defs(s.dest.left, b, defs); defs(s.dest.right, b, defs); }
+				defs(s.src, b, defs); defs(s.width, b, defs);
+			}
+			defs(b.left, b, defs); defs(b.right, b, defs); defs(b.value, b, defs);
+		}
+		for (Map.Entry<Integer, Set<Block>> e : defs.entrySet()) {
+			int slot = e.getKey();
+			Deque<Block> work = new ArrayDeque<Block>(e.getValue());
+			Set<Block> placed = new HashSet<Block>();
+			while (!work.isEmpty())
+				for (Block f : df.get(work.pop()))
+					if (placed.add(f)) {
+						if (!phis.containsKey(f)) phis.put(f, new BitSet());
+						phis.get(f).set(slot);
+						work.push(f);
+					}
+		}
+	}
+
+	private static void def(int slot, Block b, Map<Integer, Set<Block>> defs) {
+		if (!defs.containsKey(slot)) defs.put(slot, new HashSet<Block>());
+		defs.get(slot).add(b);
+	}
+
+	// Temporaries of earlier optimizations (e.g. in inlined code) that x defines
+	private static void defs(Node x, Block b, Map<Integer, Set<Block>> defs) {
+		if (x == null) return;
+		if (x.kind == Node.Def) def(x.val, b, defs);
+		defs(x.left, b, defs); defs(x.right, b, defs);
+		if (x.args != null)
+			for (Node a : x.args) defs(a, b, defs);
+	}
+
+	private void newVersion(int slot) {
+		versionLog.add(slot); versionLog.add(version[slot]);
+		version[slot] = ++nextVersion;
+	}
+
+	//---------- dominator tree walk ----------
+
+	// State at the start of a block that is visited later
+	private static class Frame {
+		final Block block;
+		final int availMark, versionMark;	// sizes of the logs when the block was reached
+		final int memory;
+		final Map<String, Integer> kills;
+		Frame(Block block, int availMark, int versionMark, int memory, Map<String, Integer> kills) {
+			this.block = block; this.availMark = availMark; this.versionMark = versionMark;
+			this.memory = memory; this.kills = kills;
+		}
+	}
+
+	private void walk() {
+		Deque<Frame> todo = new ArrayDeque<Frame>();
+		Deque<Frame> open = new ArrayDeque<Frame>();	// path of the dominator tree to the current block
+		todo.push(new Frame(m.entry(), 0, 0, 0, kills));
+		while (!todo.isEmpty()) {
+			Frame f = todo.pop();
+			while (!open.isEmpty() && open.peek().block != f.block.idom) undo(open.pop());
+			open.push(new Frame(f.block, availLog.size(), versionLog.size(), 0, null));
+			if (f.block.preds.size() == 1) { // memory as at the end of the dominator
+				memory = f.memory; kills = new HashMap<String, Integer>(f.kills);
+			} else {
+				memory = ++nextMemory; kills = new HashMap<String, Integer>();
+			}
+			block(f.block);
+			for (int i = f.block.children.size() - 1; i >= 0; i--)
+				todo.push(new Frame(f.block.children.get(i), 0, 0, memory, kills));
+		}
+	}
+
+	// Leave the subtree of f.block: forget the values and versions it introduced
+	private void undo(Frame f) {
+		while (availLog.size() > f.availMark) avail.remove(availLog.remove(availLog.size() - 1));
+		while (versionLog.size() > f.versionMark) {
+			int old = versionLog.remove(versionLog.size() - 1);
+			version[versionLog.remove(versionLog.size() - 1)] = old;
+		}
+	}
+
+	private void block(Block b) {
+		BitSet p = phis.get(b);
+		if (p != null)
+			for (int slot = p.nextSetBit(0); slot >= 0; slot = p.nextSetBit(slot + 1)) newVersion(slot);
+		for (Stat s : b.stats) {
+			switch (s.kind) {
+				case Stat.Assign:
+					Node d = s.dest;
+					if (d.kind == Node.Fld) visit(d.left);
+					else if (d.kind == Node.Elem) { visit(d.left); visit(d.right); }
+					visit(s.src);
+					if (d.kind == Node.Local) newVersion(d.val);
+					else kill(d.location());
+					break;
+				case Stat.Eval:
+					visit(s.src); break;
+				default:
+					visit(s.src); visit(s.width);
+			}
+		}
+		if (b.term == Block.Branch) { visit(b.left); visit(b.right); }
+		else if (b.term == Block.Return && b.value != null) visit(b.value);
+	}
+
+	private void kill(String loc) { kills.put(loc, ++nextMemory); }
+
+	private String memory(String loc) {
+		Integer k = kills.get(loc);
+		return "@" + memory + "." + (k == null ? 0 : k);
+	}
+
+	// Key of the value of x, null if x is not pure
+	private String key(Node x) {
+		String a, b;
+		switch (x.kind) {
+			case Node.Con:
+				return "c" + x.val;
+			case Node.Local:
+				return "l" + x.val + "." + (x.val < nSlots ? version[x.val] : 0);
+			case Node.Static:
+				return "s" + x.val + memory(x.location());
+			case Node.Fld:
+				a = key(x.left);
+				return a == null ? null : "f" + x.val + "(" + a + ")" + memory(x.location());
+			case Node.Elem:
+				a = key(x.left); b = key(x.right);
+				return a == null || b == null ? null : "e(" + a + "," + b + ")" + memory(x.location());
+			case Node.Len:
+				a = key(x.left);
+				return a == null ? null : "n(" + a + ")";
+			case Node.Neg:
+				a = key(x.left);
+				return a == null ? null : "-(" + a + ")";
+			case Node.Add: case Node.Sub: case Node.Mul: case Node.Div: case Node.Rem: case Node.Shl: case Node.Shr:
+				a = key(x.left); b = key(x.right);
+				if (a == null || b == null) return null;
+				if ((x.kind == Node.Add || x.kind == Node.Mul) && a.compareTo(b) > 0) { String h = a; a = b; b = h; }
+				return x.kind + "(" + a + "," + b + ")";
+			default:
+				return null;
+		}
+	}
+
+	// Number of instructions to evaluate x, loads from memory count twice
+	private static int cost(Node x) {
+		switch (x.kind) {
+			case Node.Con: case Node.Local: return 1;
+			case Node.Static: return 2;
+			case Node.Fld: return 2 + cost(x.left);
+			case Node.Elem: return 2 + cost(x.left) + cost(x.right);
+			case Node.Neg: case Node.Len: return 1 + cost(x.left);
+			default: return 1 + cost(x.left) + cost(x.right);
+		}
+	}
+
+	// Number the values of x and its operands in evaluation order
+	private void visit(Node x) {
+		String k = key(x);
+		if (k != null) {
+			if (cost(x) <= 2) return; // cheaper than a temporary
+			Node first = avail.get(k);
+			if (first != null) { // redundant: its operands are not evaluated any more
+				if (!redundant.containsKey(first)) redundant.put(first, new ArrayList<Node>());
+				redundant.get(first).add(x);
+				return;
+			}
+		}
+		if (x.left != null) visit(x.left);
+		if (x.right != null) visit(x.right);
+		if (x.args != null)
+			for (Node a : x.args) visit(a);
+		if (k != null) { avail.put(k, x); availLog.add(k); }
+		else if (x.kind == Node.Call) memory = ++nextMemory;
+		else if (x.kind == Node.Def) newVersion(x.val);
+	}
+}
@@ -0,0 +1,70 @@
+/* MicroJava Name Pool
+   ===================
+Maps identifier spellings in the source buffer to canonical String objects.
+Every name is looked up directly in the scanner's character buffer, so a
+String is only created the first time a spelling occurs. New names are
+interned in the JVM string pool; therefore the same spelling yields the same
+String object in all compilations and for the names of the predeclared
+universe, and the symbol table can compare names by identity.
+Every name also gets a small integer id (its index in the pool).
+*/
+package MJ;
+
+import java.util.Arrays;
+
+public class NamePool {
+	private int[] table;	// open addressing hash table of name ids, -1 = empty
+	private String[] names;	// name by id
+	private int[] hashes;	// hash code by id
+	private int size;		// number of names
+
+	public NamePool() {
+		table = new int[256];
+		Arrays.fill(table, -1);
+		names = new String[128];
+		hashes = new int[128];
+	}
+
+	// Return the id of the name buf[start..start+len-1]; h is its String.hashCode()
+	public int intern(char[] buf, int start, int len, int h) {
+		int mask = table.length - 1;
+		int i = h & mask;
+		for (int id = table[i]; id >= 0; id = table[i]) {
+			if (hashes[id] == h && equal(names[id], buf, start, len)) return id;
+			i = (i + 1) & mask;
+		}
+		if (size == names.length) {
+			names = Arrays.copyOf(names, 2 * size);
+			hashes = Arrays.copyOf(hashes, 2 * size);
+		}
+		int id = size++;
+		names[id] = new String(buf, start, len).intern();
+		hashes[id] = h;
+		table[i] = id;
+		if (2 * size > table.length) rehash();
+		return id;
+	}
+
+	// Return the canonical String of the name with the given id
+	public String name(int id) { return names[id]; }
+
+	public int size() { return size; }
+
+	private static boolean equal(String s, char[] buf, int start, int len) {
+		if (s.length() != len) return false;
+		for (int i = 0; i < len; i++)
+			if (s.charAt(i) != buf[start + i]) return false;
+		return true;
+	}
+
+	private void rehash() {
+		table = new int[2 * table.length];
+		Arrays.fill(table, -1);
+		int mask = table.length - 1;
+		for (int id = 0; id < size; id++) {
+			int i = hashes[id] & mask;
+			while (table[i] >= 0) i = (i + 1) & mask;
+			table[i] = id;
+		}
+	}
+}
@@ -6,6 +6,7 @@ package MJ;
 import java.util.*;
 import MJ.SymTab.*;
 import MJ.CodeGen.*;
+import MJ.IR.*;
 
 public class Parser {
     private static final int  // token codes
@@ -26,29 +27,54 @@ public class Parser {
         "program", "read", "return", "void", "while", "eof"
         };
 
-    private static Token t;			// current token (recently recognized)
-    private static Token la;		// lookahead token
-    private static int sym;			// always contains la.kind
-    public  static int errors;  // error counter
-    private static int errDist;	// no. of correctly recognized tokens since last error
-    private static Obj curMethod;
+    private static final BitSet exprStart, statStart, statSeqFollow, declStart, declFollow;
 
-    private static BitSet exprStart, statStart, statSeqFollow, declStart, declFollow;
+    private final CompilationContext ctx;
+    private final Scanner scanner;
+    private final Tab tab;
+    private final Code code;
+    private final NamePool names;
+
+    private static final int chunk = 1024;	// tokens scanned ahead
+    private final TokenStream ts = new TokenStream(chunk);
+    private int t;			// current token (recently recognized), index in ts
+    private int la;			// lookahead token, index in ts
+    private int sym;			// always contains ts.kind[la]
+    public  int errors;  // error counter
+    private int errDist;	// no. of correctly recognized tokens since last error
+    private Obj curMethod;
+
+    public Parser(CompilationContext ctx) {
+        this.ctx = ctx;
+        scanner = ctx.scanner;
+        tab = ctx.tab;
+        code = ctx.code;
+        names = ctx.names;
+    }
 
     //------------------- auxiliary methods ----------------------
-    private static void scan() {
+    private void scan() {
         t = la;
-        la = Scanner.next();
-        sym = la.kind;
+        if (sym != eof && ++la == ts.count) { // chunk consumed: keep t, scan the next chunk behind it
+            ts.copy(t, 0);
+            t = 0; la = 1;
+            scanner.fill(ts, 1);
+        }
+        sym = ts.kind[la];
         errDist++;
         /*
-        System.out.print("line " + la.line + ", col " + la.col + ": " + name[sym]);
-        if (sym == ident) System.out.print(" (" + la.string + ")");
-        if (sym == number || sym == charCon) System.out.print(" (" + la.val + ")");
+        System.out.print("line " + ts.line[la] + ", col " + ts.col[la] + ": " + name[sym]);
+        if (sym == ident) System.out.print(" (" + names.name(ts.val[la]) + ")");
+        if (sym == number || sym == charCon) System.out.print(" (" + ts.val[la] + ")");
         System.out.println();*/
     }
 
-    private static void check(int expected) {
+    // Canonical name of the current token, null if it is not an identifier
+    private String string() {
+        return ts.kind[t] == ident ? names.name(ts.val[t]) : null;
+    }
+
+    private void check(int expected) {
         if (sym == expected) scan();
         else {
 //            System.out.println("found " + name[sym]);
@@ -56,9 +82,9 @@ public class Parser {
         }
     }
 
-    public static void error(String msg) { // syntactic error at token la
+    public void error(String msg) { // syntactic error at token la
         if (errDist >= 3) {
-                System.out.println("-- line " + la.line + " col " + la.col + ": " + msg);
+                ctx.out.println("-- line " + ts.line[la] + " col " + ts.col[la] + ": " + msg);
                 errors++;
         }
         errDist = 0;
@@ -66,7 +92,7 @@ public class Parser {
 
     //-------------- parsing methods (in alphabetical order) -----------------   
     //"(" [ Expr {"," Expr} ] ")".
-    private static void ActPars(Operand m) {
+    private void ActPars(Operand m) {
         Operand ap;
         check(lpar);
         if (m.kind != Operand.Meth) { error("called object is not a method"); m.obj = Tab.noObj; }
@@ -79,7 +105,7 @@ public class Parser {
                 if(sym == comma)scan();
                 else if(sym == minus || exprStart.get(sym)){
                     ap = Expr();
-                    Code.load(ap); aPars++;
+                    code.load(ap); aPars++;
                     if (fp != null) {
                         if (!ap.type.assignableTo(fp.type)) error("parameter type mismatch");
                     fp = fp.next;}
@@ -93,14 +119,14 @@ public class Parser {
     }
     
     //"+" | "-".
-    private static void Addop() {
+    private void Addop() {
         if(sym == plus ) scan();
         else if(sym == minus) scan();
         else error("Error: Invalid Addop");
     }
 
     //"{" {Statement} "}"
-    private static void Block() {
+    private void Block() {
         check(lbrace);        
         while(sym != rbrace && sym != eof){
             Statement();
@@ -110,81 +136,80 @@ public class Parser {
     
 
     //"class" ident "{" {VarDecl} "}".
-    private static void ClassDecl() {
+    private void ClassDecl() {
         check(class_);
         check(ident);
 
         Struct curClass = new Struct(Struct.Class);
-        Tab.insert(Obj.Type, t.stringBuilder.toString(), curClass);
+        tab.insert(Obj.Type, string(), curClass);
         
-        Tab.openScope();
+        tab.openScope();
         check(lbrace);
         while(sym == ident){
             VarDecl();
         }
         
-        curClass.nFields = Tab.curScope.nVars;
-        curClass.fields = Tab.curScope.locals;
+        curClass.setFields(tab.curScope);
         check(rbrace);
-        Tab.closeScope();
+        tab.closeScope();
     }
 
     //Expr Relop Expr.
-    private static int Condition() {
+    private int Condition() {
         int op;
         Operand x,y;
-        x = Expr(); Code.load(x);
+        x = Expr(); code.load(x);
         op = Relop();
-        y = Expr(); Code.load(y);
+        y = Expr(); code.load(y);
         if (!x.type.compatibleWith(y.type)) error("type mismatch"); 
         if (x.type.isRefType() && op != Code.eq && op != Code.ne) error("invalid compare");
         return op;
     }
     
     //"final" Type ident "=" (number | charConst) ";".
-    private static void ConstDecl() {
+    private void ConstDecl() {
         check(final_);
         Struct type = Type();
         check(ident);
-        Obj obj = Tab.insert(Obj.Con, t.stringBuilder.toString(), type);
+        Obj obj = tab.insert(Obj.Con, string(), type);
         
         check(assign);
         if(sym == number){
             if(type != Tab.intType){error("Character Constant Expected");}
             scan();
-            obj.val = t.val; 
+            obj.val = ts.val[t]; 
         }else if(sym == charCon){
             if(type != Tab.charType){error("Integer Constant Expected");}
             scan();
-            obj.val = t.val; 
+            obj.val = ts.val[t]; 
         }else error("Error: Invalid ConstDecl");
         check(semicolon);
     }
     
     //ident {'.' ident | '[' Expr ']'}.
-     private static Operand Designator() {
+     private Operand Designator() {
          Operand x, y; Obj o;
          check(ident);
-         x = new Operand(Tab.find(t.stringBuilder.toString()));
+         x = new Operand(tab.find(string()), this);
          for (;;)
              if (sym == period) {
-                 Code.load(x);
+                 code.load(x);
                  scan();
                  check(ident);
                  if (x.type.kind == Struct.Class) {
-                     o = Tab.findField(t.stringBuilder.toString(), x.type);
+                     o = tab.findField(string(), x.type);
                      x.adr = o.adr;
                      x.type = o.type;
                  } else error("dereferenced object is not a class");
                  x.kind = Operand.Fld;
              } else if (sym == lbrack) {
-                 Code.load(x);
+                 code.load(x);
                  scan();
                  y = Expr();
                  check(rbrack);
                  if (x.type.kind == Struct.Arr) {
                      if (y.type != Tab.intType) error("index must be an int");
-                     Code.load(y);
+                     code.load(y);
                      x.type = x.type.elemType;
                  } else error("indexed object is not an array");
                  x.kind = Operand.Elem;
@@ -193,7 +218,7 @@ public class Parser {
      }
 
     //["-"] Term {Addop Term}.
-    private static Operand Expr() {
+    private Operand Expr() {
         Operand x,y;
         int op;
         if(sym == minus){
@@ -201,28 +226,67 @@ public class Parser {
             x = Term();
             if(x.type != Tab.intType)error("integer operand required");
             if(x.kind == Operand.Con) x.val = -x.val;
-            else {Code.load(x); Code.put(Code.neg);} 
+            else {code.load(x); code.put(Code.neg); x.nonNeg = false;} 
         } else x = Term();
         
         for (;;) {
             if (sym == plus) { scan(); op = Code.add;
             }else if (sym == minus) { scan(); op = Code.sub;
             }else break;
-            Code.load(x);
+            int start = code.pc;
+            boolean con = isIntCon(x);
+            code.load(x);
             y = Term();
-            Code.load(y);
+            if (con && isIntCon(y)) { // fold; the load of x is the last code, take it back
+                code.pc = start;
+                x.kind = Operand.Con; x.val = fold(op, x.val, y.val);
+                continue;
+            }
+            code.load(y);
             if (x.type != Tab.intType || y.type != Tab.intType) error("operands must be of type int"); 
-            Code.put(op);
+            code.put(op);
+            x.nonNeg = false;
         }
         return x;
     }
+
+    private static boolean isIntCon(Operand x) {
+        return x.kind == Operand.Con && x.type == Tab.intType;
+    }
+
+    // Strength reduction of x op c, where x is already loaded: x * 2^k becomes
+    // x << k, and x / 2^k becomes x >> k if x is known to be >= 0 (for
+    // negative x the shift rounds down instead of towards 0). Returns false
+    // if nothing was generated.
+    private boolean reduce(Operand x, int op, int c) {
+        if (c <= 0 || (c & (c - 1)) != 0) return false;
+        int k = Integer.numberOfTrailingZeros(c);
+        if (op == Code.mul) x.nonNeg = false;
+        else if (op != Code.div || !x.nonNeg) return false;
+        if (k > 0) { // x * 1 and x / 1 generate nothing
+            code.load(new Operand(k));
+            code.put(op == Code.mul ? Code.shl : Code.shr);
+        }
+        return true;
+    }
+
+    // Compute a op b for constant operands
+    private static int fold(int op, int a, int b) {
+        switch (op) {
+            case Code.add: return a + b;
+            case Code.sub: return a - b;
+            case Code.mul: return a * b;
+            case Code.div: return a / b;
+            default:       return a % b;
+        }
+    }
     
     //Designator [ActPars]
     //| number
     //| charConst
     //| "new" ident ["[" Expr "]"]
     //| "(" Expr ")".
-    private static Operand Factor() {
+    private Operand Factor() {
         Operand x;
         
         if(sym == ident){
@@ -231,39 +295,41 @@ public class Parser {
                 ActPars(x);
                 if (x.type == Tab.noType) error("procedure called as a function"); 
                 if (x.obj == Tab.ordObj || x.obj == Tab.chrObj) ; // nothing 
-                else if (x.obj == Tab.lenObj) Code.put(Code.arraylength); 
-                else { Code.put(Code.call); Code.put2(x.adr); } 
+                else if (x.obj == Tab.lenObj) code.put(Code.arraylength); 
+                else code.putCall(x.adr);
                 x.kind = Operand.Stack;
+                x.nonNeg = x.obj == Tab.lenObj;
             }
         }else if(sym == number){
-            x = new Operand(t.val);
             scan();
+            x = new Operand(ts.val[t]);
         }else if(sym == charCon){
-            x = new Operand(t.val);
-            x.type = Tab.charType;
             scan();
+            x = new Operand(ts.val[t]);
+            x.type = Tab.charType;
         }else if(sym == new_){
             scan();
             check(ident);
-            Obj obj = Tab.find(t.stringBuilder.toString());
+            Obj obj = tab.find(string());
             Struct type = obj.type; 
            
             if(sym == lbrack) {
                 scan(); 
-                if (obj.kind != Obj.Type) error("type expected");
+                if (obj.kind != Obj.Type) { error("type expected"); type = Tab.noType; }
                 x = Expr();
                 if (x.type != Tab.intType) error("array size must be an integer"); 
-                Code.load(x); 
-                Code.put(Code.newarray); 
-                if (type == Tab.charType) Code.put(0); 
-                else Code.put(1); type = new Struct(Struct.Arr, type);
+                code.load(x); 
+                code.put(Code.newarray); 
+                if (type == Tab.charType) code.put(0); 
+                else code.put(1); type = type.arrayOf();
                 check(rbrack);}
             else{
                  if (obj.kind != Obj.Type || type.kind != Struct.Class) error("class type expected"); 
-                 Code.put(Code.new_); Code.put2(type.nFields);}
+                 code.put(Code.new_); code.put2(type.nFields);}
             
             x = new Operand(Operand.Stack,0,type);
         }else if(sym == lpar){
+            scan();
             x = Expr();
             check(rpar);
         }else{
@@ -274,38 +340,38 @@ public class Parser {
     }
     
     //Type ident {"," Type ident}.
-    private static int FormPars() {
+    private int FormPars() {
         int n = 0;
         Struct type = Type();
         check(ident);
-        Tab.insert(Obj.Var, t.stringBuilder.toString(), type);
+        tab.insert(Obj.Var, string(), type);
         n++;
         while(sym==comma){
             scan();
             type = Type();
             check(ident);
-            Tab.insert(Obj.Var, t.stringBuilder.toString(), type);
+            tab.insert(Obj.Var, string(), type);
             n++;
         }
         return n;
     }
     
     //(Type | "void") ident "(" [FormPars] ")" {VarDecl} Block.
-    private static void MethodDecl() {
+    private void MethodDecl() {
         Struct type = Tab.noType;
         if(sym == ident) type = Type();
         else if(sym == void_) scan();
         else error("Error: MethodDecl");
         
         check(ident);
-        String name = t.stringBuilder.toString();
-        curMethod = Tab.insert(Obj.Meth, t.stringBuilder.toString(), type);
-        Tab.openScope();
+        String name = string();
+        curMethod = tab.insert(Obj.Meth, string(), type);
+        tab.openScope();
         check(lpar);
         
         if(sym == ident) curMethod.nPars = FormPars();
         if (name.equals("main")) {
-            Code.mainPc = Code.pc;
+            code.mainPc = code.pc;
             if (curMethod.type != Tab.noType) error(" main method must be void"); 
             if (curMethod.nPars != 0) error("main must not have parameters");}
         
@@ -314,24 +380,25 @@ public class Parser {
             VarDecl();
         }
         
-        curMethod.locals = Tab.curScope.locals;
-        curMethod.adr = Code.pc; 
-        Code.put(Code.enter); 
-        Code.put(curMethod.nPars); 
-        Code.put(Tab.curScope.nVars); 
+        curMethod.locals = tab.curScope.locals;
+        curMethod.adr = code.pc; 
+        code.put(Code.enter); 
+        code.put(curMethod.nPars); 
+        code.put(tab.curScope.nVars); 
         
         Block();
         
         if (curMethod.type == Tab.noType) { 
-            Code.put(Code.exit);
-            Code.put(Code.return_);
+            code.put(Code.exit);
+            code.put(Code.return_);
         } else { // end of function reached without a return statement 
-            Code.put(Code.trap); Code.put(1); } 
-        Tab.closeScope();
+            code.put(Code.trap); code.put(1); } 
+        if (ctx.optimize && errors == 0) ctx.optimizer.optimize(curMethod, tab.curScope);
+        tab.closeScope();
     }
     
     //"*" | "/" | "%"
-    private static void Mulop() {
+    private void Mulop() {
         if(sym == times) scan();
         else if(sym == slash) scan();
         else if(sym == rem) scan();
@@ -339,10 +406,10 @@ public class Parser {
     }
     
     //"program" ident {ConstDecl | ClassDecl | VarDecl} '{' {MethodDecl} '}'.
-    private static void Program() {
+    private void Program() {
         check(program_);
         check(ident);
-        Tab.openScope();
+        tab.openScope();
         for (;;) {
             if (sym == final_) ConstDecl();
             else if (sym == class_) ClassDecl();
@@ -362,13 +429,16 @@ public class Parser {
         }
         
         check(rbrace);
-        Tab.dumpScope(Tab.curScope.locals);
-        Tab.closeScope();
-        Code.dump();
+        code.finish(); // lay out jumps and calls; this moves the methods
+        for (Obj o = tab.curScope.locals; o != null; o = o.next)
+            if (o.kind == Obj.Meth) o.adr = code.relocate(o.adr);
+        if (ctx.listing) tab.dumpScope(tab.curScope.locals);
+        tab.closeScope();
+        if (ctx.listing) code.dump();
     }
 
     //"==" | "!=" | ">" | ">=" | "<" | "<=".
-    private static int Relop() {
+    private int Relop() {
         int op = -1;
         if(sym == eql){scan(); op = Code.eq;
         }else if(sym == neq){scan(); op = Code.ne;
@@ -389,7 +459,7 @@ public class Parser {
     //| "print" "(" Expr ["," number] ")" ";"
     //| Block
     //| ";".
-    private static void Statement() {
+    private void Statement() {
         Operand x,y;
         int op;
         if (!statStart.get(sym)) {
@@ -405,53 +475,52 @@ public class Parser {
             if(sym == assign){
                 scan();
                 y = Expr();
-                if (y.type.assignableTo(x.type)) Code.assign(x, y); // x: Local | Static | Fld | Elem
+                if (y.type.assignableTo(x.type)) code.assign(x, y); // x: Local | Static | Fld | Elem
                     // assign must load y
                 else error("incompatible types in assignment");
             }else if(sym == lpar){
                 ActPars(x);
-                Code.put(Code.call);
-                Code.put2(x.adr);
-                if (x.type != Tab.noType) Code.put(Code.pop);
+                code.putCall(x.adr);
+                if (x.type != Tab.noType) code.put(Code.pop);
             }
             check(semicolon);
         }else if(sym == if_){
             scan();
             check(lpar); op = Condition();
-            Code.putFalseJump(op, 0);
-            int adr = Code.pc - 2;
+            code.putFalseJump(op, 0);
+            int adr = code.pc - 4;
             check(rpar);
             Statement();
 
             if (sym == else_) { 
                 scan(); 
-                Code.putJump(0);
-                int adr2 = Code.pc - 2;
-                Code.fixup(adr);
+                code.putJump(0);
+                int adr2 = code.pc - 4;
+                code.fixup(adr);
                 Statement(); 
-                Code.fixup(adr2);    
-            }else Code.fixup(adr);
+                code.fixup(adr2);    
+            }else code.fixup(adr);
         }else if(sym == while_){
             scan();
-            int top = Code.pc;
+            int top = code.pc;
             check(lpar); 
             op = Condition(); 
-            Code.putFalseJump(op, 0);
-            int adr = Code.pc - 2;
+            code.putFalseJump(op, 0);
+            int adr = code.pc - 4;
             check(rpar);
             Statement();
-            Code.putJump(top);
-            Code.fixup(adr);
+            code.putJump(top);
+            code.fixup(adr);
         }else if(sym == return_){
             scan();
             if(exprStart.get(sym)){
                 x = Expr();
-                Code.load(x);
+                code.load(x);
                 if (curMethod.type == Tab.noType) error("void method must not return a value");
                 else if (!x.type.assignableTo(curMethod.type)) error("return type must match method type");
             }else if (curMethod.type != Tab.noType) error("return expression expected");
-            Code.put(Code.exit);
-            Code.put(Code.return_);
+            code.put(Code.exit);
+            code.put(Code.return_);
             check(semicolon);
         }else if(sym == read_){
             scan();
@@ -476,7 +545,7 @@ public class Parser {
     }
     
     //Factor {Mulop Factor}.
-    private static Operand Term() {
+    private Operand Term() {
         Operand x,y;
         int op;
         x = Factor();
@@ -487,44 +556,66 @@ public class Parser {
             }else if (sym == rem) {op = Code.rem;scan();
             }else break;
             
-            Code.load(x);
+            int start = code.pc;
+            boolean con = isIntCon(x);
+            code.load(x);
             y = Factor();
-            Code.load(y);
+            // only a zero divisor traps; x % 1 is legal (and folds to 0 for a constant x)
+            if (isIntCon(y) && y.val == 0 && (op == Code.div || op == Code.rem)) error("division by zero");
+            else if (con && isIntCon(y)) { // fold; the load of x is the last code, take it back
+                code.pc = start;
+                x.kind = Operand.Con; x.val = fold(op, x.val, y.val);
+                continue;
+            } else if (isIntCon(y) && x.type == Tab.intType && reduce(x, op, y.val)) continue;
+            code.load(y);
             if (x.type != Tab.intType || y.type != Tab.intType) error("operands must be of type int"); 
-            Code.put(op);
+            code.put(op);
+            x.nonNeg = false;
         }
         return x;
     }
         
     //ident ["[" "]"].
-    private static Struct Type() {
+    private Struct Type() {
         check(ident);
-        Obj obj = Tab.find(t.stringBuilder.toString());
-        if(obj.kind != obj.Type) error("Type Expected");
+        Obj obj = tab.find(string());
         Struct type = obj.type;
+        if(obj.kind != obj.Type) { error("Type Expected"); type = Tab.noType; }
         if(sym == lbrack){
             scan();
             check(rbrack);
-            type = new Struct(Struct.Arr,type);
+            type = type.arrayOf();
         }
         return type;
     }
 
     //Type ident {"," ident } ";".
-    private static void VarDecl() {
+    private void VarDecl() {
         Struct type;
         type = Type();
         check(ident);
-        Tab.insert(Obj.Var, t.stringBuilder.toString(), type);
+        tab.insert(Obj.Var, string(), type);
         while(sym == comma){
             scan();
             check(ident);
-            Tab.insert(Obj.Var, t.stringBuilder.toString(), type);
+            tab.insert(Obj.Var, string(), type);
         }
         check(semicolon);
     } 
  
-    public static void parse() {
+    public void parse() {
+        // start parsing
+        tab.init();
+        code.init();
+        errors = 0; errDist = 3;
+        scanner.fill(ts, 0);
+        t = la = 0;
+        sym = ts.kind[la];
+        Program();
+        if (sym != eof) error("end of file found before end of program");
+    }
+
+    static {
         // initialize symbol sets
         BitSet s;
         s = new BitSet(64); exprStart = s;
@@ -542,13 +633,5 @@ public class Parser {
 
         s = new BitSet(64); declFollow = s;
         s.set(lbrace); s.set(void_); s.set(eof);
-
-        // start parsing
-        Tab.init();
-        Code.init();
-        errors = 0; errDist = 3;
-        scan();
-        Program();
-        if (sym != eof) error("end of file found before end of program");
     }
 }
\ No newline at end of file
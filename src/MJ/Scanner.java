@@ -4,6 +4,9 @@
 package MJ;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.*;
 import java.util.Arrays;
 
 public class Scanner {
@@ -20,306 +23,305 @@ public class Scanner {
             class_ = 25, else_ = 26, final_ = 27, if_ = 28,
             new_ = 29, print_ = 30, program_ = 31, read_ = 32,
             return_ = 33, void_ = 34, while_ = 35, eof = 36;
-    private static final String key[] = { // sorted list of keywords
-        "class", "else", "final", "if", "new", "print",
-        "program", "read", "return", "void", "while"
+    // Keywords are recognized with a minimal perfect hash on the spelling in
+    // the source buffer: slot = length + assoc[first] + assoc[last] - 9 maps
+    // the 11 keywords onto 0..10. A name is a keyword iff its slot is in range
+    // and it matches key[slot]; letters that never start or end a keyword have
+    // an assoc value that puts every slot out of range.
+    private static final String key[] = { // keywords by hash slot
+        "print", "else", "void", "if", "new", "class",
+        "while", "final", "return", "program", "read"
     };
     private static final int keyVal[] = {
-        class_, else_, final_, if_, new_, print_,
-        program_, read_, return_, void_, while_
+        print_, else_, void_, if_, new_, class_,
+        while_, final_, return_, program_, read_
     };
+    private static final int maxKeyLen = 7;
+    private static final byte[] assoc = new byte[128];
 
-    private static char ch;			// lookahead character
-    public static int col;			// current column
-    public static int line;		// current line
-    private static int pos;			// current position from start of source file
-    private static Reader in;  	// source file reader
-    private static char[] lex;	// current lexeme (token string)
+    static {
+        Arrays.fill(assoc, (byte) 64);
+        assoc['c'] = 1; assoc['d'] = 7; assoc['e'] = 3; assoc['f'] = 6;
+        assoc['i'] = 4; assoc['l'] = 5; assoc['m'] = 8; assoc['n'] = 3;
+        assoc['p'] = 3; assoc['r'] = 8; assoc['s'] = 8; assoc['t'] = 1;
+        assoc['v'] = 0; assoc['w'] = 7;
+    }
+
+    private final CompilationContext ctx;
+    public int line;		// current line
+    private int pos;			// current position from start of source file
+    private int lineStart;	// position of the last eol (-1 on the first line)
+    private char[] buf;		// source text, terminated by eofCh at buf[len]
+    private int len;		// number of characters in buf
+    private final NamePool names;	// canonical identifier names
+
+    public Scanner(CompilationContext ctx, Reader r) throws IOException {
+        this.ctx = ctx;
+        names = ctx.names;
+        read(r);
+        init();
+    }
+
+    public Scanner(CompilationContext ctx, File f) throws IOException {
+        this.ctx = ctx;
+        names = ctx.names;
+        map(f);
+        init();
+    }
 
-    //----- ch = next input character
-    private static void nextCh() {
+    //--------- Source input
+    // The whole source is held in one char array, which the scanner reads by index.
+    // There is always room for the eofCh sentinel behind the last character.
+
+    // Read all characters from r
+    private void read(Reader r) throws IOException {
+        buf = new char[8192];
+        len = 0;
+        int n;
+        while ((n = r.read(buf, len, buf.length - len)) >= 0) {
+            len += n;
+            if (len == buf.length) buf = Arrays.copyOf(buf, 2 * len);
+        }
+    }
+
+    // Map the file into memory and decode it with the platform charset
+    private void map(File f) throws IOException {
+        FileInputStream s = new FileInputStream(f);
         try {
-            ch = (char) in.read();
-            col++;
-            pos++;
-            if (ch == eol) {
-                line++;
-                col = 0;
-            } else if (ch == '\uffff') {
-                ch = eofCh;
-            }
-        } catch (IOException e) {
-            ch = eofCh;
+            FileChannel c = s.getChannel();
+            ByteBuffer bytes = c.map(FileChannel.MapMode.READ_ONLY, 0, c.size());
+            CharsetDecoder d = Charset.defaultCharset().newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            CharBuffer chars = CharBuffer.allocate((int) (bytes.remaining() * (double) d.maxCharsPerByte()) + 1);
+            d.decode(bytes, chars, true);
+            d.flush(chars);
+            buf = chars.array();
+            len = chars.position();
+        } finally {
+            s.close();
         }
     }
 
-    //--------- Initialize scanner
-    public static void init(Reader r) {
-        in = new BufferedReader(r);
-        lex = new char[64];
+    //--------- Initialize scanner (restart at the beginning of the source)
+    public void init() {
+        buf[len] = eofCh;
         line = 1;
-        col = 0;
-        nextCh();
+        pos = 0;
+        lineStart = -1;
+    }
+
+    //---------- Lexer tables
+    // Every character is mapped to a character class. The transition table
+    // delta[state * nClasses + class] holds either the row of the next state,
+    // i.e. next * nClasses (>= 0, the character is consumed) or ~kind (< 0):
+    // the token is complete and the character is left for the next token.
+
+    private static final int // character classes
+            cOther = 0, cLetter = 1, cDigit = 2, cBlank = 3, cEol = 4, cEof = 5,
+            cUnder = 6, cPlus = 7, cMinus = 8, cTimes = 9, cSlash = 10,
+            cRem = 11, cEqual = 12, cBang = 13, cLess = 14, cGreater = 15,
+            cSemicolon = 16, cComma = 17, cPeriod = 18, cLpar = 19, cRpar = 20,
+            cLbrack = 21, cRbrack = 22, cLbrace = 23, cRbrace = 24, cQuote = 25,
+            nClasses = 26;
+    private static final int // states
+            sStart = 0, sIdent = 1, sNumber = 2, sEqual = 3, sBang = 4,
+            sLess = 5, sGreater = 6, sSlash = 7, sComment = 8,
+            sPlus = 9, sMinus = 10, sTimes = 11, sRem = 12, sSemicolon = 13,
+            sComma = 14, sPeriod = 15, sLpar = 16, sRpar = 17, sLbrack = 18,
+            sRbrack = 19, sLbrace = 20, sRbrace = 21, sEql = 22, sNeq = 23,
+            sLeq = 24, sGeq = 25, sNone = 26, nStates = 27;
+    private static final int restart = 37; // pseudo token: comment skipped
+
+    private static final byte[] charClass = new byte[Character.MAX_VALUE + 1];
+    private static final short[] delta = new short[nStates * nClasses];
+
+    private static void accept(int state, int kind) {
+        for (int c = 0; c < nClasses; c++) delta[state * nClasses + c] = (short) ~kind;
+    }
+
+    private static void move(int state, int cls, int next) {
+        delta[state * nClasses + cls] = (short) (next * nClasses);
+    }
+
+    static {
+        for (int c = 0; c <= ' '; c++) charClass[c] = cBlank;
+        charClass[eol] = cEol;
+        charClass[eofCh] = cEof;
+        charClass['\uffff'] = cEof; // (char) -1, the end of file value of Reader.read()
+        for (int c = 'a'; c <= 'z'; c++) charClass[c] = cLetter;
+        for (int c = 'A'; c <= 'Z'; c++) charClass[c] = cLetter;
+        for (int c = '0'; c <= '9'; c++) charClass[c] = cDigit;
+        charClass['_'] = cUnder; charClass['+'] = cPlus; charClass['-'] = cMinus;
+        charClass['*'] = cTimes; charClass['/'] = cSlash; charClass['%'] = cRem;
+        charClass['='] = cEqual; charClass['!'] = cBang; charClass['<'] = cLess;
+        charClass['>'] = cGreater; charClass[';'] = cSemicolon; charClass[','] = cComma;
+        charClass['.'] = cPeriod; charClass['('] = cLpar; charClass[')'] = cRpar;
+        charClass['['] = cLbrack; charClass[']'] = cRbrack; charClass['{'] = cLbrace;
+        charClass['}'] = cRbrace; charClass['\''] = cQuote;
+
+        // start state: the first character decides the token
+        accept(sStart, none); // not reached: blanks are skipped before
+        move(sStart, cOther, sNone); move(sStart, cUnder, sNone);
+        move(sStart, cLetter, sIdent); move(sStart, cDigit, sNumber);
+        move(sStart, cPlus, sPlus); move(sStart, cMinus, sMinus);
+        move(sStart, cTimes, sTimes); move(sStart, cSlash, sSlash);
+        move(sStart, cRem, sRem); move(sStart, cEqual, sEqual);
+        move(sStart, cBang, sBang); move(sStart, cLess, sLess);
+        move(sStart, cGreater, sGreater); move(sStart, cSemicolon, sSemicolon);
+        move(sStart, cComma, sComma); move(sStart, cPeriod, sPeriod);
+        move(sStart, cLpar, sLpar); move(sStart, cRpar, sRpar);
+        move(sStart, cLbrack, sLbrack); move(sStart, cRbrack, sRbrack);
+        move(sStart, cLbrace, sLbrace); move(sStart, cRbrace, sRbrace);
+        delta[sStart * nClasses + cQuote] = (short) ~charCon; // read by readCharCon
+        delta[sStart * nClasses + cEof] = (short) ~eof;      // eofCh is never consumed
+
+        accept(sIdent, ident);
+        move(sIdent, cLetter, sIdent); move(sIdent, cDigit, sIdent); move(sIdent, cUnder, sIdent);
+        accept(sNumber, number);
+        move(sNumber, cDigit, sNumber);
+        accept(sEqual, assign); move(sEqual, cEqual, sEql);
+        accept(sBang, none);    move(sBang, cEqual, sNeq);
+        accept(sLess, lss);     move(sLess, cEqual, sLeq);
+        accept(sGreater, gtr);  move(sGreater, cEqual, sGeq);
+        accept(sSlash, slash);  move(sSlash, cSlash, sComment);
+        for (int c = 0; c < nClasses; c++) move(sComment, c, sComment);
+        delta[sComment * nClasses + cEol] = (short) ~restart;
+        delta[sComment * nClasses + cEof] = (short) ~restart;
+
+        accept(sPlus, plus); accept(sMinus, minus); accept(sTimes, times);
+        accept(sRem, rem); accept(sSemicolon, semicolon); accept(sComma, comma);
+        accept(sPeriod, period); accept(sLpar, lpar); accept(sRpar, rpar);
+        accept(sLbrack, lbrack); accept(sRbrack, rbrack); accept(sLbrace, lbrace);
+        accept(sRbrace, rbrace); accept(sEql, eql); accept(sNeq, neq);
+        accept(sLeq, leq); accept(sGeq, geq); accept(sNone, none);
     }
 
     //---------- Return next input token
-    public static Token next() {
-        while (ch <= ' ') {
-            nextCh(); // skip blanks, tabs, eols
-        }
-        Token t = new Token();
-        t.line = line;
-        t.col = col;
-        switch (ch) {
-            case 'a':
-            case 'b':
-            case 'c':
-            case 'd':
-            case 'e':
-            case 'f':
-            case 'g':
-            case 'h':
-            case 'i':
-            case 'j':
-            case 'k':
-            case 'l':
-            case 'm':
-            case 'n':
-            case 'o':
-            case 'p':
-            case 'q':
-            case 'r':
-            case 's':
-            case 't':
-            case 'u':
-            case 'v':
-            case 'w':
-            case 'x':
-            case 'y':
-            case 'z':
-            case 'A':
-            case 'B':
-            case 'C':
-            case 'D':
-            case 'E':
-            case 'F':
-            case 'G':
-            case 'H':
-            case 'I':
-            case 'J':
-            case 'K':
-            case 'L':
-            case 'M':
-            case 'N':
-            case 'O':
-            case 'P':
-            case 'Q':
-            case 'R':
-            case 'S':
-            case 'T':
-            case 'U':
-            case 'V':
-            case 'W':
-            case 'X':
-            case 'Y':
-            case 'Z':
-                readName(t);
-                break;
-            case '0':
-            case '1':
-            case '2':
-            case '3':
-            case '4':
-            case '5':
-            case '6':
-            case '7':
-            case '8':
-            case '9':
-                readNumber(t);
-                break;
+    // Scans one token into the single slot of one; used by next() only.
+    private final TokenStream one = new TokenStream(1);
 
-            case '+':
-                nextCh();
-                t.kind = plus;
-                break;
-            case '-':
-                nextCh();
-                t.kind = minus;
-                break;
-            case '*':
-                nextCh();
-                t.kind = times;
-                break;
-            case '/':
-                nextCh();
-                if (ch == '/') {
-                    do {
-                        nextCh();
-                    } while (ch != '\n' && ch != eofCh);
-                    t = next(); // call scanner recursively
-                } else {
-                    t.kind = slash;
-                }
-                break;
-            case '%':
-                nextCh();
-                t.kind = rem;
-                break;
-            case '=':
-                nextCh();
-                if (ch == '=') {
-                    nextCh();
-                    t.kind = eql;
-                } else {
-                    t.kind = assign;
-                }
-                break;
-            case '!':
-                nextCh();
-                if (ch == '=') {
-                    nextCh();
-                    t.kind = neq;
-                }
-                break;
-            case '<':
-                nextCh();
-                if (ch == '=') {
-                    nextCh();
-                    t.kind = leq;
-                } else {
-                    nextCh();
-                    t.kind = lss;
-                }
-                break;
-            case '>':
-                nextCh();
-                if (ch == '=') {
-                    nextCh();
-                    t.kind = geq;
-                } else {
-                    nextCh();
-                    t.kind = gtr;
-                }
-                break;
-            case ';':
-                nextCh();
-                t.kind = semicolon;
-                break;
-            case ',':
-                nextCh();
-                t.kind = comma;
-                break;
-            case '.':
-                nextCh();
-                t.kind = period;
-                break;
-            case '(':
-                nextCh();
-                t.kind = lpar;
-                break;
-            case ')':
-                nextCh();
-                t.kind = rpar;
-                break;
-            case '[':
-                nextCh();
-                t.kind = lbrack;
-                break;
-            case ']':
-                nextCh();
-                t.kind = rbrack;
-                break;
-            case '{':
-                nextCh();
-                t.kind = lbrace;
-                break;
-            case '}':
-                nextCh();
-                t.kind = rbrace;
-                break;
-            case '\'':
-                readCharCon(t);
-                break;
-            case eofCh:
-                t.kind = eof;
-                break; // no nextCh() any more
-            default:
-                nextCh();
-                t.kind = none;
-                break;
-        }
+    public Token next() {
+        scan(one, 0);
+        Token t = new Token();
+        t.kind = one.kind[0]; t.line = one.line[0]; t.col = one.col[0];
+        t.val = one.val[0]; t.pos = one.pos[0]; t.len = one.len[0];
+        if (t.kind == ident) t.string = names.name(t.val);
         return t;
-    } // ch holds the next character that is still unprocessed
+    }
 
-    private static void readName(Token t) {
-        t.stringBuilder = new StringBuilder();
-        while (isLetterOrDigit(ch) || ch == '_') {
-            t.stringBuilder.append(ch);
-            nextCh();
-        }
+    // Scan tokens into s from slot from up to its capacity or up to and
+    // including the eof token; sets s.count and returns it.
+    public int fill(TokenStream s, int from) {
+        int k = from, n = s.capacity();
+        while (k < n && scan(s, k++) != eof) {}
+        return s.count = k;
+    }
 
-        int val = Arrays.binarySearch(key, t.stringBuilder);
-        if (val >= 0) {
-            t.kind = keyVal[val];
-        } else {
-            t.kind = ident;
+    // Scan the next token into slot k of s and return its kind.
+    // buf[pos] is the next character that is still unprocessed. The column of
+    // the character at position i is i - lineStart.
+    private int scan(TokenStream s, int k) {
+        char[] b = buf;
+        int i = pos, start, kind;
+        do {
+            for (;;) { // skip blanks, tabs, eols
+                int c = charClass[b[i]];
+                if (c == cBlank) i++;
+                else if (c == cEol) { line++; lineStart = i; i++; }
+                else break;
+            }
+            start = i;
+            int row = sStart * nClasses, next;
+            while ((next = delta[row + charClass[b[i]]]) >= 0) {
+                row = next;
+                i++;
+            }
+            kind = ~next;
+        } while (kind == restart);
+        s.line[k] = line;
+        s.col[k] = start - lineStart;
+        s.pos[k] = start;
+        s.len[k] = i - start;
+        s.val[k] = 0;
+        pos = i;
+        switch (kind) {
+            case ident:   kind = readName(start, i - start, s, k); break;
+            case number:  s.val[k] = readNumber(start, i - start); break;
+            case charCon: readCharCon(s, k); break;
         }
+        return s.kind[k] = kind;
     }
 
-    private static void readNumber(Token t) {
-        String num = "";
-        while (Character.isDigit(ch)) {
-            num += ch;
-            nextCh();
+    // Classify the name buf[start..start+n-1]; for identifiers the id of the
+    // canonical spelling is stored in s.val[k]. Returns the token kind.
+    private int readName(int start, int n, TokenStream s, int k) {
+        char first = buf[start], last = buf[start + n - 1];
+        if (n <= maxKeyLen && first < 128 && last < 128) {
+            int slot = n + assoc[first] + assoc[last] - 9;
+            if (slot >= 0 && slot < key.length && matches(key[slot], start, n))
+                return keyVal[slot];
         }
+        int h = 0;
+        for (int i = start, end = start + n; i < end; i++) h = 31 * h + buf[i];
+        s.val[k] = names.intern(buf, start, n, h);
+        return ident;
+    }
 
-        t.val = 0;
-        try {
-            t.val = Integer.parseInt(num);
-        } catch (Exception e) {
-            System.out.println("Error: Number Overflow");;
-        } finally {
-            t.kind = number;
-        }
+    // Does buf[start..start+n-1] spell the keyword k?
+    private boolean matches(String k, int start, int n) {
+        if (k.length() != n) return false;
+        for (int i = 0; i < n; i++)
+            if (buf[start + i] != k.charAt(i)) return false;
+        return true;
     }
 
-    private static void readCharCon(Token t) {
-        t.stringBuilder = new StringBuilder();
-        nextCh();
-        while (ch != '\'' && ch != '\n') {
-            t.stringBuilder.append(ch);
-            nextCh();
+    // Compute the value of the number buf[start..start+n-1]
+    private int readNumber(int start, int n) {
+        int val = 0;
+        for (int i = start, end = start + n; i < end; i++) {
+            int d = buf[i] - '0';
+            if (val > (Integer.MAX_VALUE - d) / 10) {
+                ctx.out.println("Error: Number Overflow");;
+                return 0;
+            }
+            val = 10 * val + d;
         }
-        nextCh();
+        return val;
+    }
 
-        t.kind = charCon;
-        t.val = 0;
-        if (t.stringBuilder.length() == 0) {
-            System.out.println("Error: Empty Char Constant");
-        } else if (t.stringBuilder.length() == 1 && t.stringBuilder.charAt(0) != '\\') {
-            t.val = t.stringBuilder.charAt(0);
-        } else if (t.stringBuilder.length() == 2 && t.stringBuilder.charAt(0) == '\\') {
-            switch (t.stringBuilder.charAt(1)) {
+    // Read a char constant into slot k of s; buf[pos] is the opening quote
+    private void readCharCon(TokenStream s, int k) {
+        int i = pos + 1, start = i;
+        while (buf[i] != '\'' && buf[i] != eol && charClass[buf[i]] != cEof) i++;
+        int n = i - start;
+        s.pos[k] = start;
+        s.len[k] = n;
+        if (buf[i] == eol) { line++; lineStart = i; }
+        if (charClass[buf[i]] != cEof) i++; // closing quote or eol
+        pos = i;
+
+        if (n == 0) {
+            ctx.out.println("Error: Empty Char Constant");
+        } else if (n == 1 && buf[start] != '\\') {
+            s.val[k] = buf[start];
+        } else if (n == 2 && buf[start] == '\\') {
+            switch (buf[start + 1]) {
                 case 't':
-                    t.val = '\t';
+                    s.val[k] = '\t';
                     break;
                 case 'r':
-                    t.val = '\r';
+                    s.val[k] = '\r';
                     break;
                 case 'n':
-                    t.val = '\n';
+                    s.val[k] = '\n';
                     break;
                 default:
-                    System.out.println("Error: ");
+                    ctx.out.println("Error: ");
             }
         } else {
-            System.out.println("Error: Invalid Character");
+            ctx.out.println("Error: Invalid Character");
         }
     }
 
-    private static boolean isLetterOrDigit(char c) {
-        return ('a' <= c && c <= 'z')
-                || ('A' <= c && c <= 'Z')
-                || ('0' <= c && c <= '9');
-    }
 }
@@ -1,5 +1,8 @@
 /* MicroJava Symbol Table Scopes (HM 06-12-28)
    =============================
+Besides the ordered list of its objects, every scope keeps a hash index
+of them (open addressing over the canonical names), so that objects are
+inserted and found in constant time.
 */
 package MJ.SymTab;
 
@@ -7,4 +10,45 @@ public class Scope {
 	public Scope outer;		// to outer scope
 	public Obj   locals;	// to local variables of this scope
 	public int   nVars;     // number of variables in this scope
-}
\ No newline at end of file
+	private Obj  last;		// last object in locals
+	private Obj[] index = new Obj[8];	// hash index of locals; holds the first object of every name
+	private int  size;		// number of names in index
+
+	// Return the object with the given name in this scope or null
+	public Obj lookup(String name) {
+		int mask = index.length - 1;
+		for (int i = hash(name) & mask; index[i] != null; i = (i + 1) & mask)
+			if (index[i].name == name) return index[i];
+		return null;
+	}
+
+	// Append obj to locals; returns false if its name was already declared in this scope
+	public boolean add(Obj obj) {
+		if (last == null) locals = obj; else last.next = obj;
+		last = obj;
+		int mask = index.length - 1, i = hash(obj.name) & mask;
+		for (; index[i] != null; i = (i + 1) & mask)
+			if (index[i].name == obj.name) return false;
+		index[i] = obj;
+		if (2 * ++size > index.length) rehash();
+		return true;
+	}
+
+	private static int hash(String name) {
+		if (name == null) return 0;
+		int h = name.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	private void rehash() {
+		Obj[] old = index;
+		index = new Obj[2 * old.length];
+		int mask = index.length - 1;
+		for (Obj p : old) {
+			if (p == null) continue;
+			int i = hash(p.name) & mask;
+			while (index[i] != null) i = (i + 1) & mask;
+			index[i] = p;
+		}
+	}
+}
@@ -1,6 +1,8 @@
 /* MicroJava Type Structures  (HM 06-12-28)
    =========================
 A type structure stores the type attributes of a declared object.
+Array types are unique: T[] is only created by T.arrayOf(), so every
+type, including every array type, is represented by exactly one Struct.
 */
 package MJ.SymTab;
 
@@ -12,20 +14,41 @@ public class Struct {
     public Struct elemType; // Arr: element type
     public int    nFields;  // Class: number of fields
     public Obj    fields;   // Class: fields
+    private Scope fieldScope; // Class: scope of the fields, used as their index
+    private Struct arrayType; // the type this[], once it was needed
 
     public Struct(int kind) { this.kind = kind; }
 
-    public Struct(int kind, Struct elemType) {
+    private Struct(int kind, Struct elemType) {
         this.kind = kind; this.elemType = elemType;
     }
 
+    // Return the array type with this element type
+    public Struct arrayOf() {
+        if (arrayType == null) arrayType = new Struct(Arr, this);
+        return arrayType;
+    }
+
+    // Class: take the fields from the scope of the class declaration. The
+    // scope is closed and never changed again, so its hash index serves as
+    // an immutable field index.
+    public void setFields(Scope s) {
+        nFields = s.nVars;
+        fields = s.locals;
+        fieldScope = s;
+    }
+
+    // Class: return the field with the given name or null
+    public Obj findField(String name) {
+        return fieldScope == null ? null : fieldScope.lookup(name);
+    }
+
     // Checks if this is a reference type
     public boolean isRefType() { return kind == Class || kind == Arr; }
 
-    // Checks if two types are equal
+    // Checks if two types are equal; array types are unique, too
     public boolean equals(Struct other) {
-        if (kind == Arr) return other.kind == Arr && other.elemType == elemType;
-        else return other == this;
+        return other == this;
     }
 
     // Checks if two types are compatible (e.g. in a comparison)
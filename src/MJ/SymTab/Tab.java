@@ -8,76 +8,82 @@ import java.lang.*;
 import MJ.*;
 
 public class Tab {
-	public static Scope curScope;	// current scope
-	public static int   curLevel;	// nesting level of current scope
-
-	public static Struct intType;	// predefined types
-	public static Struct charType;
-	public static Struct nullType;
-	public static Struct noType;
-	public static Obj chrObj;		// predefined objects
-	public static Obj ordObj;
-	public static Obj lenObj;
-	public static Obj noObj;
-
-	private static void error(String msg) {
-		Parser.error(msg);
+	// The universe holds the predeclared types and objects. It is built only
+	// once and never changed afterwards, so all compilations can share it.
+	public static final Scope universe;
+
+	public static final Struct intType;	// predefined types
+	public static final Struct charType;
+	public static final Struct nullType;
+	public static final Struct noType;
+	public static final Obj chrObj;		// predefined objects
+	public static final Obj ordObj;
+	public static final Obj lenObj;
+	public static final Obj noObj;
+
+	private final CompilationContext ctx;
+	public Scope curScope;	// current scope
+	public int   curLevel;	// nesting level of current scope
+
+	public Tab(CompilationContext ctx) {
+		this.ctx = ctx;
+	}
+
+	private void error(String msg) {
+		ctx.parser.error(msg);
 	}
 
 	//------------------ scope management ---------------------
 
-	public static void openScope() {
+	public void openScope() {
             Scope s = new Scope();
             s.outer = curScope;
             curScope = s;
             curLevel++;
 	}
 
-	public static void closeScope() {
+	public void closeScope() {
             curScope = curScope.outer;
             curLevel--;
 	}
 
 	//------------- Object insertion and retrieval --------------
+	// All names are canonical Strings (see MJ.NamePool), so they are compared by identity.
 
 	// Create a new object with the given kind, name and type
 	// and insert it into the top scope.
-	public static Obj insert(int kind, String name, Struct type) {
+	public Obj insert(int kind, String name, Struct type) {
             Obj obj = new Obj(kind, name, type);
             if (kind == Obj.Var) {
                 obj.adr = curScope.nVars; curScope.nVars++;
                 obj.level = curLevel;
             }
             //--- append object node
-            Obj p = curScope.locals, last = null;
-            while (p != null) {
-                if (p.name.equals(name)) error(name + " is Already Declared");
-                    last = p; p = p.next;
-                }
-            if (last == null) curScope.locals = obj; else last.next = obj;
+            if (!curScope.add(obj)) error(name + " is Already Declared");
             return obj;
 	}
 
 	// Retrieve the object with the given name from the top scope
-	public static Obj find(String name) {
-            for (Scope s = curScope; s != null; s = s.outer)
-                for (Obj p = s.locals; p != null; p = p.next)
-                    if (p.name.equals(name)) return p;
-                        error(name + " is undeclared");
-             return noObj;
+	public Obj find(String name) {
+            for (Scope s = curScope; s != null; s = s.outer) {
+                Obj p = s.lookup(name);
+                if (p != null) return p;
+            }
+            error(name + " is undeclared");
+            return noObj;
 	}
 
 	// Retrieve a class field with the given name from the fields of "type"
-	public static Obj findField(String name, Struct type) {
-                for (Obj p = type.fields; p != null; p = p.next)
-                    if (p.name.equals(name)) return p;
-                        error("field " + name + " is undeclared");
-             return noObj;	
+	public Obj findField(String name, Struct type) {
+                Obj p = type.findField(name);
+                if (p != null) return p;
+                error("field " + name + " is undeclared");
+                return noObj;
 	}
 
 	//---------------- methods for dumping the symbol table --------------
 
-	public static void dumpStruct(Struct type) {
+	public void dumpStruct(Struct type) {
 		String kind;
 		switch (type.kind) {
 			case Struct.Int:  kind = "Int  "; break;
@@ -86,20 +92,20 @@ public class Tab {
 			case Struct.Class:kind = "Class"; break;
 			default: kind = "None";
 		}
-		System.out.print(kind+" ");
+		ctx.out.print(kind+" ");
 		if (type.kind == Struct.Arr) {
-			System.out.print(type.nFields + " (");
+			ctx.out.print(type.nFields + " (");
 			dumpStruct(type.elemType);
-			System.out.print(")");
+			ctx.out.print(")");
 		}
 		if (type.kind == Struct.Class) {
-			System.out.println(type.nFields + "<<");
+			ctx.out.println(type.nFields + "<<");
 			for (Obj o = type.fields; o != null; o = o.next) dumpObj(o);
-			System.out.print(">>");
+			ctx.out.print(">>");
 		}
 	}
 
-	public static void dumpObj(Obj o) {
+	public void dumpObj(Obj o) {
 		String kind;
 		switch (o.kind) {
 			case Obj.Con:  kind = "Con "; break;
@@ -108,13 +114,13 @@ public class Tab {
 			case Obj.Meth: kind = "Meth"; break;
 			default: kind = "None";
 		}
-		System.out.print(kind+" "+o.name+" "+o.val+" "+o.adr+" "+o.level+" "+o.nPars+" (");
+		ctx.out.print(kind+" "+o.name+" "+o.val+" "+o.adr+" "+o.level+" "+o.nPars+" (");
 		dumpStruct(o.type);
-		System.out.println(")");
+		ctx.out.println(")");
 	}
 
-	public static void dumpScope(Obj head) {
-		System.out.println("--------------");
+	public void dumpScope(Obj head) {
+		ctx.out.println("--------------");
 		for (Obj o = head; o != null; o = o.next) dumpObj(o);
 		for (Obj o = head; o != null; o = o.next)
 			if (o.kind == Obj.Meth || o.kind == Obj.Prog) dumpScope(o.locals);
@@ -122,11 +128,21 @@ public class Tab {
 
 	//-------------- initialization of the symbol table ------------
 
-	public static void init() {  // build the universe
-		Obj o;
-		curScope = new Scope();
-		curScope.outer = null;
+	public void init() {  // start with the universe as the outermost scope
+		curScope = universe;
 		curLevel = -1;
+	}
+
+	// Append a predeclared object to the universe
+	private static Obj predeclare(int kind, String name, Struct type) {
+		Obj obj = new Obj(kind, name, type);
+		universe.add(obj);
+		return obj;
+	}
+
+	static {  // build the universe
+		universe = new Scope();
+		universe.outer = null;
 
 		// create predeclared types
 		intType = new Struct(Struct.Int);
@@ -134,26 +150,24 @@ public class Tab {
 		nullType = new Struct(Struct.Class);
 		noType = new Struct(Struct.None);
 		noObj = new Obj(Obj.Var, "???", noType);
+		// the array types of the shared types are created here, so that
+		// arrayOf() never modifies them during a compilation (int and char
+		// are the only shared type names; the parser uses noType when a
+		// name is not a type)
+		intType.arrayOf(); charType.arrayOf(); noType.arrayOf();
 
 		// create predeclared objects
-		insert(Obj.Type, "int", intType);
-		insert(Obj.Type, "char", charType);
-		insert(Obj.Con, "null", nullType);
-		chrObj = insert(Obj.Meth, "chr", charType);
+		predeclare(Obj.Type, "int", intType);
+		predeclare(Obj.Type, "char", charType);
+		predeclare(Obj.Con, "null", nullType);
+		chrObj = predeclare(Obj.Meth, "chr", charType);
 		chrObj.locals = new Obj(Obj.Var, "i", intType);
 		chrObj.nPars = 1;
-		ordObj = insert(Obj.Meth, "ord", intType);
+		ordObj = predeclare(Obj.Meth, "ord", intType);
 		ordObj.locals = new Obj(Obj.Var, "ch", charType);
 		ordObj.nPars = 1;
-		lenObj = insert(Obj.Meth, "len", intType);
-		lenObj.locals = new Obj(Obj.Var, "a", new Struct(Struct.Arr, noType));
+		lenObj = predeclare(Obj.Meth, "len", intType);
+		lenObj.locals = new Obj(Obj.Var, "a", noType.arrayOf());
 		lenObj.nPars = 1;
 	}
 }
-
-
-
-
-
-
-
@@ -0,0 +1,111 @@
+/* MicroJava Optimizer Tester
+   ==========================
+   Compiles every test program with and without -O, runs both object files
+   in the VM and compares what they print (the error message of a trap
+   included) with the expected output. Addresses and timings are ignored,
+   because the optimized code is laid out differently.
+   Run with
+     java MJ.TestOptimizer
+*/
+package MJ;
+
+import java.io.*;
+
+public class TestOptimizer {
+
+	// name, expected output, expected output with -O, source
+	static final String[][] tests = {
+		{"branch to one target keeps a call", "", "",
+			"program T class C { int n; } {\n" +
+			"  int bad1() { }\n" +
+			"  int f(C c) { c.n = c.n + 1; return 1; }\n" +
+			"  void main() C c; int x; {\n" +
+			"    c = new C;\n" +
+			"    if (f(c) > 0) ;\n" +
+			"    if (c.n != 1) x = bad1();\n" +
+			"  }\n" +
+			"}"},
+		{"branch to one target keeps a null reference", "-- exception: null reference used",
+			"-- exception: null reference used",
+			"program T class C { int n; } {\n" +
+			"  void main() C c; {\n" +
+			"    c = null;\n" +
+			"    if (c.n > 0) ;\n" +
+			"  }\n" +
+			"}"},
+		{"branch to one target keeps a division by zero", "-- exception: division by zero",
+			"-- exception: division by zero",
+			"program T {\n" +
+			"  void main() int x, y; {\n" +
+			"    x = 1; y = 0;\n" +
+			"    if (3 < x / y) ;\n" +
+			"  }\n" +
+			"}"},
+		{"void self call before the return is a jump", "-- exception: method stack overflow", "",
+			"program T {\n" +
+			"  void loop(int n) { if (n > 0) loop(n - 1); }\n" +
+			"  void main() {\n" +
+			"    loop(3000);\n" +
+			"  }\n" +
+			"}"},
+		{"temporary of a branch condition does not take the slot of a live local", "", "",
+			"program T class C { int f; int[] arr; } C gc; int g1; {\n" +
+			"  void main() int l0, l2; {\n" +
+			"    gc = new C; gc.arr = new int[3]; gc.f = 7;\n" +
+			"    if (-1 - gc.f * (gc.arr[1] - l2) >= g1) {} else l2 = l0 + (123456 * (-2) + gc.f / (-2));\n" +
+			"    gc.arr[0] = 1;\n" +
+			"  }\n" +
+			"}"},
+		{"temporary of a branch condition does not overwrite a live local", "", "",
+			"program T class C { int f; int[] arr; } C gc; {\n" +
+			"  void main() int l0, l2; {\n" +
+			"    gc = new C; gc.f = 0;\n" +
+			"    if (l0 - gc.f * 1 >= 0) l0 = (gc.f + l2) / 2;\n" +
+			"    gc.arr = new int[2];\n" +
+			"  }\n" +
+			"}"},
+	};
+
+	// Compile source and run it; returns the output of the VM
+	static String run(String source, boolean optimize) throws IOException {
+		ByteArrayOutputStream listing = new ByteArrayOutputStream();
+		CompilationContext ctx = new CompilationContext(new StringReader(source), new PrintStream(listing));
+		ctx.listing = false;
+		ctx.optimize = optimize;
+		if (ctx.compile() != 0) return "-- compilation failed:\n" + listing;
+		ctx.code.dataSize = Math.max(ctx.code.dataSize, 64);	// the parser does not set it: room for the statics
+		File obj = File.createTempFile("mjtest", ".obj");
+		try {
+			ctx.write(new FileOutputStream(obj));
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			Run.out = new PrintStream(output);
+			Run.execute(obj.getPath());
+			Run.out.flush();
+			return output.toString()
+				.replaceAll("\nCompletion took \\d+ ms", "")
+				.replaceAll("-- exception at address \\d+:", "-- exception:")
+				.trim();
+		} finally {
+			obj.delete();
+		}
+	}
+
+	public static void main(String args[]) {
+		int failed = 0;
+		for (String[] t : tests) {
+			try {
+				String plain = run(t[3], false), optimized = run(t[3], true);
+				if (plain.equals(t[1]) && optimized.equals(t[2])) System.out.println("ok      " + t[0]);
+				else {
+					System.out.println("FAILED  " + t[0] + "\n  without -O: " + plain + " (expected: " + t[1] + ")"
+						+ "\n  with -O:    " + optimized + " (expected: " + t[2] + ")");
+					failed++;
+				}
+			} catch (IOException e) {
+				System.out.println("FAILED  " + t[0] + ": " + e.getMessage());
+				failed++;
+			}
+		}
+		System.out.println(failed + " of " + tests.length + " tests failed");
+	}
+}
@@ -18,9 +18,8 @@ public class TestParser {
 		if (args.length > 0) {
 			String source = args[0];
 			try {
-				Scanner.init(new InputStreamReader(new FileInputStream(source)));
-				Parser.parse();
-				System.out.println(Parser.errors + " errors detected");
+				CompilationContext ctx = new CompilationContext(new InputStreamReader(new FileInputStream(source)));
+				System.out.println(ctx.compile() + " errors detected");
 			} catch (IOException e) {
 				System.out.println("-- cannot open input file " + source);
 			}
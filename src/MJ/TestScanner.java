@@ -96,12 +96,12 @@ public class TestScanner {
 		if (args.length > 0) {
 			String source = args[0];
 			try {
-				Scanner.init(new InputStreamReader(new FileInputStream(source)));
+				Scanner scanner = new CompilationContext(new InputStreamReader(new FileInputStream(source))).scanner;
 				do {
-					t = Scanner.next();
+					t = scanner.next();
 					System.out.print("line " + t.line + ", col " + t.col + ": " + tokenName[t.kind]);
 					switch (t.kind) {
-						case ident:   System.out.println(t.stringBuilder); break;
+						case ident:   System.out.println(t.string); break;
 						case number:  System.out.println(t.val); break;
 						case charCon: System.out.println(t.val); break;
 						default: System.out.println(); break;
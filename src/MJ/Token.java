@@ -8,5 +8,7 @@ public class Token {
 	public int line;		// token line
 	public int col;			// token column
 	public int val;			// token value (for number and charConst)
-	public StringBuilder stringBuilder;	// token string
+	public String string;	// token string (ident: canonical name from the NamePool)
+	public int pos;			// ident, number, charCon: start of the lexeme in the source buffer
+	public int len;			// ident, number, charCon: length of the lexeme
 }
\ No newline at end of file
@@ -0,0 +1,36 @@
+/* MicroJava Token Stream
+   ======================
+Tokens stored column-wise in parallel int arrays instead of one Token object
+per token. The scanner fills the stream a chunk at a time (Scanner.fill) and
+the parser reads it by index, so scanning allocates nothing per token and
+the tokens of a whole chunk are produced ahead of parsing.
+For identifiers val holds the id of the name in the NamePool.
+*/
+package MJ;
+
+public class TokenStream {
+	public final int[] kind;	// token kind
+	public final int[] line;	// token line
+	public final int[] col;		// token column
+	public final int[] val;		// number, charCon: value; ident: name id
+	public final int[] pos;		// ident, number, charCon: start of the lexeme in the source buffer
+	public final int[] len;		// ident, number, charCon: length of the lexeme
+	public int count;			// number of valid tokens
+
+	public TokenStream(int capacity) {
+		kind = new int[capacity];
+		line = new int[capacity];
+		col = new int[capacity];
+		val = new int[capacity];
+		pos = new int[capacity];
+		len = new int[capacity];
+	}
+
+	public int capacity() { return kind.length; }
+
+	// Copy token i to slot j
+	public void copy(int i, int j) {
+		kind[j] = kind[i]; line[j] = line[i]; col[j] = col[i];
+		val[j] = val[i]; pos[j] = pos[i]; len[j] = len[i];
+	}
+}